@@ -0,0 +1,146 @@
+package com.tietoevry.datadog;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.client.methods.ZeroCopyPost;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking transport on top of the NIO client. {@link #send(byte[], int, String, Callback)} returns as soon as the
+ * request is queued and the callback runs on an I/O dispatcher thread, so in-flight requests do not occupy
+ * worker threads.
+ */
+public class AsyncHttpTransport implements Transport {
+    private final CloseableHttpAsyncClient httpClient;
+    private final ScheduledExecutorService evictor;
+    private final ScheduledFuture<?> eviction;
+    private final String url;
+    private final String apiKey;
+
+    public AsyncHttpTransport(String url, String apiKey, ConnectionSettings connections) {
+        this.url = url;
+        this.apiKey = apiKey;
+
+        RequestConfig.Builder requestConfig = RequestConfig.custom();
+        requestConfig.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        requestConfig.setConnectionRequestTimeout(CONNECT_TIMEOUT_MS);
+        requestConfig.setSocketTimeout(SOCKET_TIMEOUT_MS);
+
+        PoolingNHttpClientConnectionManager connManager;
+        try {
+            connManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Could not start I/O reactor", e);
+        }
+        connManager.setMaxTotal(connections.getMaxTotal());
+        connManager.setDefaultMaxPerRoute(connections.getMaxPerRoute());
+
+        httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connManager)
+                .setDefaultRequestConfig(requestConfig.build())
+                .setKeepAliveStrategy(connections.keepAliveStrategy())
+                .build();
+        httpClient.start();
+
+        long idleTimeoutMs = Math.max(1, connections.getIdleTimeoutMs());
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "datadog-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        eviction = evictor.scheduleWithFixedDelay(() -> {
+            connManager.closeExpiredConnections();
+            connManager.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+        }, idleTimeoutMs, idleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void send(byte[] gzippedBody, int length, String query, Callback callback) {
+        HttpPost httpPost = new HttpPost(Transport.withQuery(url, query));
+        httpPost.setHeader("Accept", "application/json");
+        httpPost.setHeader("Content-Type", "application/json");
+        httpPost.setHeader("Content-Encoding", "gzip");
+        httpPost.setHeader("DD-API-KEY", apiKey);
+        httpPost.setEntity(new NByteArrayEntity(gzippedBody, 0, length));
+
+        // the outcome arrives through the callback
+        Future<HttpResponse> unused = httpClient.execute(httpPost, callback(callback));
+    }
+
+    /**
+     * Hands the file to the socket with {@link java.nio.channels.FileChannel#transferTo}, so the body
+     * is never copied into the heap.
+     */
+    @Override
+    public void send(File gzippedBody, String query, Callback callback) {
+        ZeroCopyPost producer;
+        try {
+            producer = new ZeroCopyPost(Transport.withQuery(url, query), gzippedBody, ContentType.APPLICATION_JSON) {
+                @Override
+                protected HttpEntityEnclosingRequest createRequest(URI requestURI, HttpEntity entity) {
+                    HttpEntityEnclosingRequest request = super.createRequest(requestURI, entity);
+                    request.setHeader("Accept", "application/json");
+                    request.setHeader("Content-Encoding", "gzip");
+                    request.setHeader("DD-API-KEY", apiKey);
+                    return request;
+                }
+            };
+        } catch (FileNotFoundException e) {
+            callback.failed(e);
+            return;
+        }
+        Future<HttpResponse> unused = httpClient.execute(producer, new BasicAsyncResponseConsumer(),
+                callback(callback));
+    }
+
+    private static FutureCallback<HttpResponse> callback(Callback callback) {
+        return new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                Header retryAfter = response.getFirstHeader("Retry-After");
+                callback.completed(response.getStatusLine().getStatusCode(),
+                        retryAfter == null ? null : retryAfter.getValue());
+            }
+
+            @Override
+            public void failed(Exception e) {
+                callback.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+                callback.failed(new CancellationException("Request cancelled"));
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        eviction.cancel(false);
+        evictor.shutdownNow();
+        httpClient.close();
+    }
+}
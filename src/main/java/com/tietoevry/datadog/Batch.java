@@ -0,0 +1,68 @@
+package com.tietoevry.datadog;
+
+import org.graylog2.plugin.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages collected for one post request together with their estimated serialized size.
+ */
+public class Batch {
+    private final List<Message> messages;
+    private long estimatedBytes;
+    private long createdNanos;
+    private long enqueuedNanos;
+    private long closedNanos;
+
+    public Batch(int capacity) {
+        this.messages = new ArrayList<>(capacity);
+    }
+
+    void add(Message message, long size, long enqueued, long now) {
+        if (messages.isEmpty()) {
+            createdNanos = now;
+            enqueuedNanos = enqueued;
+        }
+        messages.add(message);
+        estimatedBytes += size;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * When the first message was written to the output.
+     */
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    void close(long now) {
+        closedNanos = now;
+    }
+
+    /**
+     * When the batch was handed to the encoder.
+     */
+    public long getClosedNanos() {
+        return closedNanos;
+    }
+}
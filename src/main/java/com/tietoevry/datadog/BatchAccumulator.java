@@ -0,0 +1,136 @@
+package com.tietoevry.datadog;
+
+import org.graylog2.plugin.Message;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Collects messages into batches and closes a batch on whichever limit is reached first:
+ * message count, estimated payload bytes or the age of its oldest message.
+ */
+public class BatchAccumulator {
+    /** Datadog intake limits for a single request. */
+    public static final int MAX_INTAKE_ENTRIES = 1000;
+    public static final long MAX_INTAKE_BYTES = 5L * 1024 * 1024;
+
+    /** Envelope around each entry: ddsource, ddtags, hostname, service and the JSON punctuation. */
+    private static final int ENTRY_OVERHEAD = 160;
+    /** Quotes, colon and comma of one field, plus the escaping of its quotes in the nested message. */
+    private static final int FIELD_OVERHEAD = 10;
+    private static final int NUMBER_SIZE = 20;
+
+    private int maxMessages;
+    private final long maxBytes;
+    private final long lingerNanos;
+    private final Consumer<Batch> sink;
+    private Batch current;
+
+    public BatchAccumulator(int maxMessages, long maxBytes, long lingerNanos, Consumer<Batch> sink) {
+        this.maxMessages = Math.max(1, Math.min(maxMessages, MAX_INTAKE_ENTRIES));
+        this.maxBytes = Math.max(1, Math.min(maxBytes, MAX_INTAKE_BYTES));
+        this.lingerNanos = lingerNanos;
+        this.sink = sink;
+        this.current = new Batch(this.maxMessages);
+    }
+
+    public void add(Message message, long size, long enqueued, long now) {
+        if (!current.isEmpty() && current.getEstimatedBytes() + size > maxBytes) {
+            flush();
+        }
+        current.add(message, size, enqueued, now);
+        if (current.size() >= maxMessages || current.getEstimatedBytes() >= maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Closes the current batch if its oldest message has been waiting for the linger time.
+     */
+    public void flushIfExpired(long now) {
+        if (!current.isEmpty() && now - current.getCreatedNanos() >= lingerNanos) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        if (current.isEmpty()) {
+            return;
+        }
+        Batch ready = current;
+        ready.close(System.nanoTime());
+        current = new Batch(maxMessages);
+        sink.accept(ready);
+    }
+
+    /**
+     * How long the caller may wait for more messages before the current batch expires;
+     * {@link Long#MAX_VALUE} while the batch is empty, since it cannot expire.
+     */
+    public long nanosUntilDeadline(long now) {
+        if (current.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return current.getCreatedNanos() + lingerNanos - now;
+    }
+
+    /**
+     * Messages in the batch being filled.
+     */
+    public int size() {
+        return current.size();
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Changes the message count at which batches close, starting with the current batch.
+     */
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = Math.max(1, Math.min(maxMessages, MAX_INTAKE_ENTRIES));
+        if (current.size() >= this.maxMessages) {
+            flush();
+        }
+    }
+
+    /**
+     * Estimates the UTF-8 bytes the message takes in a request body, before escaping.
+     */
+    public static long estimateSize(Message message) {
+        long size = ENTRY_OVERHEAD;
+        for (Map.Entry<String, Object> field : message.getFieldsEntries()) {
+            size += utf8Length(field.getKey()) + FIELD_OVERHEAD + valueSize(field.getValue());
+        }
+        return size;
+    }
+
+    private static long valueSize(Object value) {
+        if (value == null) {
+            return 4;
+        }
+        if (value instanceof String) {
+            return utf8Length((String) value);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return NUMBER_SIZE;
+        }
+        return utf8Length(value.toString());
+    }
+
+    /**
+     * The UTF-8 length of the text, counted without encoding it. A surrogate pair counts 2 + 2 bytes.
+     */
+    static long utf8Length(String text) {
+        int length = text.length();
+        long bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                bytes += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+            }
+        }
+        return bytes;
+    }
+}
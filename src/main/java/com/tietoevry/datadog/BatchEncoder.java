@@ -0,0 +1,12 @@
+package com.tietoevry.datadog;
+
+/**
+ * Encodes and compresses a batch into a request body.
+ */
+@FunctionalInterface
+public interface BatchEncoder {
+    /**
+     * @return the encoded batch, or null if it could not be encoded
+     */
+    EncodedBatch encode(Batch batch);
+}
@@ -0,0 +1,13 @@
+package com.tietoevry.datadog;
+
+import java.util.function.Consumer;
+
+/**
+ * Sends an encoded batch. {@code done} must run exactly once, when the request has finished, so the
+ * connection permit can be handed to the next batch; the result tells the {@link ConcurrencyLimiter}
+ * whether the intake showed signs of overload.
+ */
+@FunctionalInterface
+public interface BatchSender {
+    void send(EncodedBatch batch, Consumer<ConcurrencyLimiter.Result> done);
+}
@@ -0,0 +1,125 @@
+package com.tietoevry.datadog;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunes the number of messages per batch by hill climbing on delivered bytes per second, as long as the
+ * 99th percentile of the time from batching to acknowledgement stays under the target. Every
+ * {@link #INTERVAL_NANOS} the size takes a step in the current direction; when throughput fell compared
+ * to the interval before, the direction turns around. A p99 above the target shrinks the size right away.
+ *
+ * The latency is measured from the moment the first message of a batch was written to the output until
+ * the intake acknowledged the batch. A target of zero keeps the initial size.
+ *
+ * The size only moves while there is a backlog, that is while most batches of the interval left messages
+ * waiting behind them. Without one, batches are as large as the traffic makes them and throughput follows
+ * the input rather than the batch size, so there is nothing to learn from it.
+ */
+public class BatchSizeController {
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double STEP = 1.25;
+    private static final double BACKOFF_RATIO = 0.75;
+    /** Throughput changes within this share count as noise and keep the direction. */
+    private static final double TOLERANCE = 0.05;
+
+    private final Logger log = LoggerFactory.getLogger(BatchSizeController.class);
+    private final int minSize;
+    private final int maxSize;
+    private final long targetLatencyMicros;
+    private final long intervalNanos;
+    private final Recorder latency = new Recorder(3);
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder backlogged = new LongAdder();
+    private final AtomicLong nextAdjustNanos;
+    private volatile int batchSize;
+    private Histogram interval;
+    private long lastAdjustNanos;
+    private double lastThroughput;
+    private boolean growing = true;
+
+    public BatchSizeController(int initialSize, int minSize, int maxSize, long targetLatencyMs) {
+        this(initialSize, minSize, maxSize, targetLatencyMs, INTERVAL_NANOS);
+    }
+
+    BatchSizeController(int initialSize, int minSize, int maxSize, long targetLatencyMs, long intervalNanos) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.batchSize = Math.min(this.maxSize, Math.max(this.minSize, initialSize));
+        this.targetLatencyMicros = TimeUnit.MILLISECONDS.toMicros(targetLatencyMs);
+        this.intervalNanos = intervalNanos;
+        this.lastAdjustNanos = System.nanoTime();
+        this.nextAdjustNanos = new AtomicLong(lastAdjustNanos + intervalNanos);
+    }
+
+    /**
+     * The number of messages a batch should have.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Records a batch the intake has acknowledged.
+     *
+     * @param backlog whether messages were waiting to be batched, encoded or sent when it was acknowledged
+     */
+    public void record(long batchBytes, long latencyNanos, boolean backlog) {
+        if (targetLatencyMicros <= 0) {
+            return;
+        }
+        bytes.add(batchBytes);
+        batches.increment();
+        if (backlog) {
+            backlogged.increment();
+        }
+        latency.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        long now = System.nanoTime();
+        long next = nextAdjustNanos.get();
+        if (now - next >= 0 && nextAdjustNanos.compareAndSet(next, now + intervalNanos)) {
+            adjust(now);
+        }
+    }
+
+    private synchronized void adjust(long now) {
+        interval = latency.getIntervalHistogram(interval);
+        double seconds = (now - lastAdjustNanos) / 1e9;
+        lastAdjustNanos = now;
+        double throughput = bytes.sumThenReset() / seconds;
+        long total = batches.sumThenReset();
+        if (interval.getTotalCount() == 0) {
+            backlogged.reset();
+            return;
+        }
+        if (backlogged.sumThenReset() * 2 < total) {
+            // throughput without a backlog is no reference for the next interval either
+            lastThroughput = 0;
+            return;
+        }
+        long p99 = interval.getValueAtPercentile(99);
+        int size = batchSize;
+        if (p99 > targetLatencyMicros) {
+            growing = false;
+            size = (int) (size * BACKOFF_RATIO);
+        } else {
+            if (throughput < lastThroughput * (1 - TOLERANCE)) {
+                growing = !growing;
+            }
+            size = growing ? (int) Math.ceil(size * STEP) : (int) (size / STEP);
+        }
+        lastThroughput = throughput;
+        size = Math.min(maxSize, Math.max(minSize, size));
+        if (size != batchSize) {
+            log.debug("Batch size {} -> {} (p99 {} ms, {} bytes/s)", batchSize, size, p99 / 1000,
+                    (long) throughput);
+            batchSize = size;
+        }
+    }
+}
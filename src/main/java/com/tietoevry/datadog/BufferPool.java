@@ -0,0 +1,61 @@
+package com.tietoevry.datadog;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output buffers for compressed batches, kept between batches. New buffers are sized from a rolling
+ * average of recent body sizes plus some headroom, so a typical batch is compressed without the buffer
+ * having to grow. Buffers far larger than the average, left over from a spike, are not kept.
+ */
+public class BufferPool {
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int AVERAGE_SHIFT = 3;
+
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicLong averageSize = new AtomicLong(MIN_BUFFER_SIZE);
+    private final int maxFree;
+
+    public BufferPool(int maxFree) {
+        this.maxFree = maxFree;
+    }
+
+    public byte[] acquire() {
+        int size = bufferSize();
+        byte[] buffer;
+        while ((buffer = free.poll()) != null) {
+            freeCount.decrementAndGet();
+            if (buffer.length >= size) {
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length > 4 * bufferSize()) {
+            return;
+        }
+        if (freeCount.incrementAndGet() > maxFree) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    /**
+     * Adds the size of a finished body to the rolling average.
+     */
+    public void recordSize(int size) {
+        long average = averageSize.get();
+        averageSize.compareAndSet(average, average + ((size - average) >> AVERAGE_SHIFT));
+    }
+
+    private int bufferSize() {
+        long average = averageSize.get();
+        return (int) Math.max(MIN_BUFFER_SIZE, average + (average >> 2));
+    }
+}
@@ -0,0 +1,130 @@
+package com.tietoevry.datadog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the outcome of the last requests to the intake. Once the failure rate over that window reaches
+ * the threshold the breaker opens and requests fail fast. After the open interval a single probe request
+ * is let through (half-open); its outcome closes the breaker or opens it for another interval.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final boolean[] window;
+    private final int failureRatePercent;
+    private final long openNanos;
+    private int position;
+    private int calls;
+    private int failures;
+    private State state = State.CLOSED;
+    private long openUntil;
+    private boolean probeInFlight;
+
+    public CircuitBreaker(int windowSize, int failureRatePercent, long openMs) {
+        this.window = new boolean[Math.max(0, windowSize)];
+        this.failureRatePercent = failureRatePercent;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+    }
+
+    /**
+     * Whether a request may be sent now. While half-open only the probe request is allowed.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openUntil < 0) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * Only the probe closes the breaker; a late answer to a request sent before it opened does not.
+     *
+     * @return true if this success closed the breaker
+     */
+    public synchronized boolean onSuccess() {
+        if (state == State.OPEN) {
+            return false;
+        }
+        if (state == State.HALF_OPEN) {
+            reset();
+            return true;
+        }
+        record(false);
+        return false;
+    }
+
+    /**
+     * @return true if this failure opened the breaker
+     */
+    public synchronized boolean onFailure() {
+        if (state != State.CLOSED) {
+            open();
+            return true;
+        }
+        record(true);
+        if (window.length > 0 && calls == window.length && failures * 100 >= failureRatePercent * calls) {
+            open();
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isProbeDue() {
+        return state == State.OPEN && System.nanoTime() - openUntil >= 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public long getOpenMs() {
+        return TimeUnit.NANOSECONDS.toMillis(openNanos);
+    }
+
+    private void record(boolean failure) {
+        if (window.length == 0) {
+            return;
+        }
+        if (calls == window.length) {
+            if (window[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.nanoTime() + openNanos;
+        probeInFlight = false;
+    }
+
+    private void reset() {
+        state = State.CLOSED;
+        probeInFlight = false;
+        position = 0;
+        calls = 0;
+        failures = 0;
+    }
+}
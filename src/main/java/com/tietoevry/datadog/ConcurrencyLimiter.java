@@ -0,0 +1,148 @@
+package com.tietoevry.datadog;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the requests in flight with a limit that adapts to the intake (additive increase,
+ * multiplicative decrease). Every request that finishes without sign of overload raises the limit by
+ * {@code 1/limit}, so about one per round trip while the limit is in use. A 429, a 5xx, a failed request
+ * or a round trip more than {@link #RTT_TOLERANCE} times the shortest one seen recently for a request of
+ * about the same size lowers the limit by {@link #BACKOFF_RATIO}, at most once per round trip. The limit
+ * stays between the configured bounds.
+ *
+ * The shortest round trip is the baseline for "slow". Upload time grows with the body, so requests are
+ * put into size buckets by powers of two and every bucket has its own baseline; a large package after
+ * small ones is not taken for overload. The baselines are reset every {@link #BASELINE_WINDOW_NANOS} so a
+ * route that got slower for good does not keep the limit down.
+ */
+public class ConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    public enum Result {
+        /** The intake answered without sign of overload. */
+        SUCCESS,
+        /** The intake throttled, failed or timed out. */
+        OVERLOAD,
+        /** The request was not sent, so it says nothing about the intake. */
+        IGNORE
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    /** Shortest round trip per size bucket, see {@link #bucket}. */
+    private final long[] minRttNanos = new long[Long.SIZE];
+    private final long[] nextMinRttNanos = new long[Long.SIZE];
+    private long baselineResetNanos;
+    private long lastDecreaseNanos;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.baselineResetNanos = System.nanoTime() + BASELINE_WINDOW_NANOS;
+        Arrays.fill(minRttNanos, Long.MAX_VALUE);
+        Arrays.fill(nextMinRttNanos, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits until a request may start.
+     *
+     * @return the start time to pass to {@link #release}
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Waits until a request may start or the deadline has passed.
+     *
+     * @return the start time to pass to {@link #release}, or -1 if the deadline passed
+     */
+    public synchronized long tryAcquire(long deadlineNanos) throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends a request and adjusts the limit to its result and round trip.
+     *
+     * @param bytes size of the request body, to compare the round trip with those of similar requests
+     */
+    public synchronized void release(long startNanos, long bytes, Result result) {
+        inFlight--;
+        long now = System.nanoTime();
+        long rtt = now - startNanos;
+        int bucket = bucket(bytes);
+        if (result == Result.SUCCESS) {
+            updateBaseline(bucket, rtt, now);
+        }
+        long baseline = minRttNanos[bucket];
+        boolean overloaded = result == Result.OVERLOAD
+                || (result == Result.SUCCESS && baseline != Long.MAX_VALUE && rtt > RTT_TOLERANCE * baseline);
+        if (overloaded) {
+            if (now - lastDecreaseNanos > rtt) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = now;
+            }
+        } else if (result == Result.SUCCESS && inFlight + 1 >= (int) limit) {
+            // only grow while the limit is what holds requests back
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until no request is in flight or the deadline has passed.
+     */
+    public synchronized void awaitIdle(long deadlineNanos) throws InterruptedException {
+        while (inFlight > 0) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void updateBaseline(int bucket, long rtt, long now) {
+        nextMinRttNanos[bucket] = Math.min(nextMinRttNanos[bucket], rtt);
+        if (now - baselineResetNanos >= 0) {
+            System.arraycopy(nextMinRttNanos, 0, minRttNanos, 0, minRttNanos.length);
+            Arrays.fill(nextMinRttNanos, Long.MAX_VALUE);
+            baselineResetNanos = now + BASELINE_WINDOW_NANOS;
+        } else {
+            minRttNanos[bucket] = Math.min(minRttNanos[bucket], rtt);
+        }
+    }
+
+    /**
+     * The size bucket of a request: requests within a factor of two of each other share one.
+     */
+    private static int bucket(long bytes) {
+        return Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(1, bytes));
+    }
+}
@@ -0,0 +1,68 @@
+package com.tietoevry.datadog;
+
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.graylog2.plugin.configuration.Configuration;
+
+/**
+ * Connection pool sizing and lifecycle shared by the transports.
+ */
+public class ConnectionSettings {
+    static final int DEFAULT_KEEP_ALIVE_MS = 60 * 1000;
+    static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MS = 2 * 1000;
+    static final int DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final long keepAliveMs;
+    private final int validateAfterInactivityMs;
+    private final long idleTimeoutMs;
+
+    public ConnectionSettings(int maxTotal, int maxPerRoute, long keepAliveMs, int validateAfterInactivityMs,
+                              long idleTimeoutMs) {
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute > 0 ? maxPerRoute : maxTotal;
+        this.keepAliveMs = keepAliveMs;
+        this.validateAfterInactivityMs = validateAfterInactivityMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public static ConnectionSettings fromConfig(Configuration conf, int maxTotal) {
+        return new ConnectionSettings(maxTotal,
+                conf.getInt("maxConnectionsPerRoute", 0),
+                conf.getInt("keepAliveMs", DEFAULT_KEEP_ALIVE_MS),
+                conf.getInt("validateAfterInactivityMs", DEFAULT_VALIDATE_AFTER_INACTIVITY_MS),
+                conf.getInt("idleTimeoutMs", DEFAULT_IDLE_TIMEOUT_MS));
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public long getKeepAliveMs() {
+        return keepAliveMs;
+    }
+
+    public int getValidateAfterInactivityMs() {
+        return validateAfterInactivityMs;
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * Keeps a connection as long as the server's {@code Keep-Alive} header allows, but never longer than
+     * the configured keep-alive.
+     */
+    public ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return (response, context) -> {
+            long advertised = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return advertised > 0 ? Math.min(advertised, keepAliveMs) : keepAliveMs;
+        };
+    }
+}
@@ -16,154 +16,504 @@
  */
 package com.tietoevry.datadog;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
 import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.outputs.MessageOutput;
+import org.graylog2.plugin.streams.Output;
 import org.graylog2.plugin.streams.Stream;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.zip.GZIPOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * This is the plugin. Your class should implement one of the existing plugin
  * interfaces. (i.e. AlarmCallback, MessageInput, MessageOutput)
  */
 public class DataDog implements MessageOutput {
+    private static final String DEFAULT_SOURCE = "cportal";
+    private static final String DEFAULT_SERVICE = "cportal";
+    private static final int DEFAULT_MAX_PACKAGE_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_MIN_PACKAGE_SIZE = 50;
+    private static final int DEFAULT_MAX_PACKAGE_SIZE = BatchAccumulator.MAX_INTAKE_ENTRIES;
+    private static final int DEFAULT_BATCH_LATENCY_TARGET_MS = 0;
+    private static final int DEFAULT_MIN_CONNECTIONS = 1;
+    private static final int DEFAULT_MAX_CONNECTIONS = 16;
+    private static final int DEFAULT_ENCODE_WORKERS = 1;
+    private static final int DEFAULT_STAGE_QUEUE_SIZE = 4;
+    private static final int DEFAULT_TRACE_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_BUFFER_CAPACITY = 20000;
+    private static final int DEFAULT_BUFFER_SIZE_MB = 64;
+    private static final int DEFAULT_BLOCK_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_SHUTDOWN_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_LINGER_MS = 1000;
+    private static final int DEFAULT_MAX_RETRIES = 5;
+    private static final int DEFAULT_RETRY_BACKOFF_MS = 500;
+    private static final int DEFAULT_RETRY_MAX_BACKOFF_MS = 30 * 1000;
+    private static final int DEFAULT_RETRY_BUFFER_SIZE_MB = 32;
+    private static final int DEFAULT_BREAKER_WINDOW = 20;
+    private static final int DEFAULT_BREAKER_FAILURE_RATE = 50;
+    private static final int DEFAULT_BREAKER_OPEN_MS = 10 * 1000;
+    private static final int DEFAULT_HOLDING_BUFFER_SIZE_MB = 32;
+    private static final int DEFAULT_SPOOL_SEGMENT_MB = 64;
+    private static final int DEFAULT_SPOOL_SIZE_MB = 1024;
+    private static final int DEFAULT_FAILED_BATCH_SIZE_MB = 1024;
+    private static final int DEFAULT_REPLAY_BYTES_PER_SECOND = 1024 * 1024;
+    private static final long DROP_LOG_INTERVAL = 1000;
 
     private final Logger log = LoggerFactory.getLogger(DataDog.class);
-    private final CloseableHttpClient httpClient;
+    private final RetryingSender sender;
     private String apiKey = "";
-    private final BlockingQueue<Message> queue;
-    private final SendingThread thread;
-    private final String url;
+    private final List<SendingThread> shards;
+    private final String routingField;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMs;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final long shutdownTimeoutMs;
+    private final DiskSpool spool;
+    private final SpoolDrainer spoolDrainer;
+    private final FailedBatchStore failedBatches;
+    private final FailedBatchReplayer replayer;
+    private final ThreadLocal<EntryEncoder> encoder;
+    private final ThreadLocal<GzipCompressor> compressor;
+    private final ThreadLocal<EntryBuffer> spoolBuffer = ThreadLocal.withInitial(EntryBuffer::new);
+    private final Queue<GzipCompressor> compressors = new ConcurrentLinkedQueue<>();
+    private final OutputMetrics metrics;
+    private final StageTracer tracer;
 
     @Inject
-    public DataDog(@Assisted Stream stream, @Assisted Configuration conf) {
+    public DataDog(@Assisted Output output, @Assisted Stream stream, @Assisted Configuration conf,
+                   MetricRegistry metricRegistry) {
+        metrics = new OutputMetrics(metricRegistry, output.getId());
+        tracer = new StageTracer(output.getId(),
+                conf.getInt("traceIntervalSeconds", DEFAULT_TRACE_INTERVAL_SECONDS));
         String key = conf.getString("apiKey");
         if (!key.equals(""))
             apiKey = key;
 
-        this.url = conf.getString("apiURL");
-        int concurrentConnections = conf.getInt("concurrentConnections");
+        String url = conf.getString("apiURL");
+        int minConnections = Math.max(1, conf.getInt("minConnections", DEFAULT_MIN_CONNECTIONS));
+        int maxConnections = Math.max(minConnections, conf.getInt("maxConnections", DEFAULT_MAX_CONNECTIONS));
+        int concurrentConnections = Math.min(maxConnections,
+                Math.max(minConnections, conf.getInt("concurrentConnections")));
+        int shardCount = Math.max(1, conf.getInt("shardCount", 1));
+        this.routingField = conf.getString("shardRoutingField", "");
 
-        queue = new ArrayBlockingQueue<>(conf.getInt("packageSize"));
+        overflowPolicy = OverflowPolicy.fromConfig(conf.getString("overflowPolicy", OverflowPolicy.BLOCK.getConfigName()));
+        blockTimeoutMs = conf.getInt("blockTimeoutMs", DEFAULT_BLOCK_TIMEOUT_MS);
+        shutdownTimeoutMs = conf.getInt("shutdownTimeoutMs", DEFAULT_SHUTDOWN_TIMEOUT_MS);
+        MessageFormat messageFormat = MessageFormat.fromConfig(
+                conf.getString("messageFormat", MessageFormat.NESTED.getConfigName()));
+        TagTemplate tagTemplate = TagTemplate.compile(conf.getString("tagTemplate", TagTemplate.DEFAULT));
+        String source = conf.getString("ddsource", DEFAULT_SOURCE);
+        String service = conf.getString("service", DEFAULT_SERVICE);
+        boolean hoistSharedAttributes = conf.getBoolean("hoistSharedAttributes", false);
+        encoder = ThreadLocal.withInitial(() -> new EntryEncoder(messageFormat, tagTemplate, source, service,
+                hoistSharedAttributes));
 
-        RequestConfig.Builder requestConfig = RequestConfig.custom();
-        requestConfig.setConnectTimeout(6 * 1000);
-        requestConfig.setConnectionRequestTimeout(6 * 1000);
-        requestConfig.setSocketTimeout(6 * 1000);
+        String transportName = conf.getString("transport", Transport.SYNC);
+        Transport transport = new MeteredTransport(Transport.create(transportName, url, apiKey,
+                ConnectionSettings.fromConfig(conf, maxConnections * shardCount)), metrics);
+        RetryPolicy retryPolicy = new RetryPolicy(conf.getInt("maxRetries", DEFAULT_MAX_RETRIES),
+                conf.getInt("retryBackoffMs", DEFAULT_RETRY_BACKOFF_MS),
+                conf.getInt("retryMaxBackoffMs", DEFAULT_RETRY_MAX_BACKOFF_MS));
+        CircuitBreaker breaker = new CircuitBreaker(conf.getInt("breakerWindow", DEFAULT_BREAKER_WINDOW),
+                conf.getInt("breakerFailureRate", DEFAULT_BREAKER_FAILURE_RATE),
+                conf.getInt("breakerOpenMs", DEFAULT_BREAKER_OPEN_MS));
+        failedBatches = openFailedBatchStore(conf, output);
+        sender = new RetryingSender(transport, retryPolicy, breaker,
+                conf.getInt("retryBufferSizeMb", DEFAULT_RETRY_BUFFER_SIZE_MB) * 1024L * 1024L,
+                conf.getInt("holdingBufferSizeMb", DEFAULT_HOLDING_BUFFER_SIZE_MB) * 1024L * 1024L,
+                Transport.isBlocking(transportName) ? maxConnections * shardCount : 1, failedBatches);
+        replayer = failedBatches == null ? null : new FailedBatchReplayer(failedBatches, sender,
+                conf.getInt("replayBytesPerSecond", DEFAULT_REPLAY_BYTES_PER_SECOND), breaker.getOpenMs());
 
-        PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
-        connManager.setMaxTotal(concurrentConnections);
-        HttpClientBuilder clientBuilder = HttpClients.custom().setConnectionManager(connManager)
-                .setDefaultRequestConfig(requestConfig.build());
-        httpClient = clientBuilder.build();
+        BufferPool bufferPool = new BufferPool(2 * maxConnections * shardCount);
+        spool = openSpool(conf, output);
+        spoolDrainer = spool == null ? null : new SpoolDrainer(spool, sender, bufferPool,
+                Math.min(conf.getInt("packageSize"), BatchAccumulator.MAX_INTAKE_ENTRIES),
+                Math.min(conf.getInt("maxPackageBytes", DEFAULT_MAX_PACKAGE_BYTES), BatchAccumulator.MAX_INTAKE_BYTES),
+                breaker.getOpenMs());
+        compressor = ThreadLocal.withInitial(() -> {
+            GzipCompressor gzip = new GzipCompressor(bufferPool);
+            compressors.add(gzip);
+            return gzip;
+        });
+        int workers = Transport.isBlocking(transportName)
+                ? maxConnections
+                : Math.min(maxConnections, Runtime.getRuntime().availableProcessors());
+        int encodeWorkers = Math.max(1, conf.getInt("encodeWorkers", DEFAULT_ENCODE_WORKERS));
+        int stageQueueSize = Math.max(1, conf.getInt("stageQueueSize", DEFAULT_STAGE_QUEUE_SIZE));
+        int minPackageSize = conf.getInt("minPackageSize", DEFAULT_MIN_PACKAGE_SIZE);
+        int maxPackageSize = conf.getInt("maxPackageSize", DEFAULT_MAX_PACKAGE_SIZE);
+        int batchLatencyTargetMs = conf.getInt("batchLatencyTargetMs", DEFAULT_BATCH_LATENCY_TARGET_MS);
 
-        thread = new SendingThread(concurrentConnections, queue, this::sendPackage);
-        thread.start();
+        int bufferCapacity = Math.max(1, conf.getInt("bufferCapacity", DEFAULT_BUFFER_CAPACITY) / shardCount);
+        long bufferBytes = conf.getInt("bufferSizeMb", DEFAULT_BUFFER_SIZE_MB) * 1024L * 1024L / shardCount;
+        shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            RingBuffer<Message> queue = new RingBuffer<>(bufferCapacity, bufferBytes,
+                    conf.getString("waitStrategy", WaitStrategy.PARK));
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(concurrentConnections, minConnections, maxConnections);
+            BatchSizeController batchSize = new BatchSizeController(conf.getInt("packageSize"),
+                    minPackageSize, Math.min(maxPackageSize, BatchAccumulator.MAX_INTAKE_ENTRIES),
+                    batchLatencyTargetMs);
+            SendingThread thread = new SendingThread(encodeWorkers, workers, stageQueueSize, limiter, batchSize,
+                    tracer, conf.getInt("maxPackageBytes", DEFAULT_MAX_PACKAGE_BYTES),
+                    conf.getInt("lingerMs", DEFAULT_LINGER_MS), queue, this::encodePackage, this::sendPackage);
+            thread.setName("datadog-sender-" + output.getId() + "-" + i);
+            shards.add(thread);
+        }
+        metrics.gauge("bufferedMessages", this::getBufferedMessages);
+        metrics.gauge("encodeQueueDepth", this::getEncodeQueueDepth);
+        metrics.gauge("transmitQueueDepth", this::getTransmitQueueDepth);
+        metrics.gauge("concurrencyLimit", this::getConcurrencyLimit);
+        metrics.gauge("targetPackageSize", this::getTargetPackageSize);
+        for (StageTracer.Step step : StageTracer.Step.values()) {
+            for (StageTracer.Percentile percentile : StageTracer.Percentile.values()) {
+                metrics.gauge(MetricRegistry.name("latencyMicros", step.getName(), percentile.getName()),
+                        () -> tracer.getPercentile(step, percentile));
+            }
+        }
+        tracer.start();
+        shards.forEach(Thread::start);
+        if (spoolDrainer != null) {
+            spoolDrainer.setName("datadog-spool-" + output.getId());
+            spoolDrainer.start();
+        }
+        if (replayer != null) {
+            replayer.setName("datadog-replay-" + output.getId());
+            replayer.start();
+        }
+    }
+
+    /**
+     * Opens the spool in a directory of its own per output, since several outputs may write the same stream.
+     */
+    private DiskSpool openSpool(Configuration conf, Output output) {
+        String directory = conf.getString("spoolDirectory", "");
+        if (directory == null || directory.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return new DiskSpool(Paths.get(directory.trim(), output.getId()),
+                    conf.getInt("spoolSegmentMb", DEFAULT_SPOOL_SEGMENT_MB) * 1024 * 1024,
+                    conf.getInt("spoolSizeMb", DEFAULT_SPOOL_SIZE_MB) * 1024L * 1024L);
+        } catch (IOException e) {
+            log.error("Could not open spool directory {}, spooling is disabled", directory, e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the failed batch store in a directory of its own per output, like the spool.
+     */
+    private FailedBatchStore openFailedBatchStore(Configuration conf, Output output) {
+        String directory = conf.getString("failedBatchDirectory", "");
+        if (directory == null || directory.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return new FailedBatchStore(Paths.get(directory.trim(), output.getId()),
+                    conf.getInt("failedBatchSizeMb", DEFAULT_FAILED_BATCH_SIZE_MB) * 1024L * 1024L);
+        } catch (IOException e) {
+            log.error("Could not open failed batch directory {}, failed batches are dropped", directory, e);
+            return null;
+        }
     }
 
     @Override
     public void stop() {
-        thread.stopThread();
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMs);
+        shards.forEach(shard -> shard.shutdown(deadline));
+        try {
+            for (SendingThread shard : shards) {
+                shard.awaitShutdown();
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while flushing messages", e);
+            Thread.currentThread().interrupt();
+        }
+        long flushed = 0;
+        long abandoned = 0;
+        for (SendingThread shard : shards) {
+            flushed += shard.getFlushed();
+            abandoned += shard.getAbandoned();
+        }
+        if (failedBatches == null) {
+            abandoned += sender.getPendingMessages();
+        }
+        if (replayer != null) {
+            replayer.stopThread();
+            try {
+                replayer.join(Transport.SOCKET_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (spoolDrainer != null) {
+            spoolDrainer.stopThread();
+            try {
+                spoolDrainer.join(Transport.SOCKET_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            spool.close();
+        }
+        if (abandoned > 0) {
+            log.warn("Output stopped, flushed {} messages and abandoned {} messages", flushed, abandoned);
+        } else {
+            log.info("Output stopped, flushed {} messages", flushed);
+        }
         try {
-            httpClient.close();
+            sender.close();
         } catch (IOException e) {
             log.error("Error closing http client", e);
         }
+        if (failedBatches != null) {
+            failedBatches.close();
+        }
+        compressors.forEach(GzipCompressor::end);
+        tracer.stop();
+        metrics.remove();
     }
 
     @Override
     public boolean isRunning() {
-        return true;
+        return running.get();
     }
 
-    private void sendPackage(List<Message> data) {
-        JSONArray jsonList = new JSONArray();
-        for (Message message : data) {
-            JSONObject json = new JSONObject();
-            message.getFieldsEntries().forEach(item -> json.put(item.getKey(), item.getValue()));
+    /**
+     * Messages waiting in the buffers of all shards to be batched.
+     */
+    public long getBufferedMessages() {
+        return shards.stream().mapToLong(shard -> shard.getQueue().size()).sum();
+    }
 
-            String vdom = json.has("vdom") ? json.getString("vdom") : "";
-            String lb_partition = json.has("lb_partition") ? json.getString("lb_partition") : "";
-            String logType = json.has("log_type") ? json.getString("log_type") : "";
+    /**
+     * Packages waiting to be encoded, over all shards.
+     */
+    public long getEncodeQueueDepth() {
+        return shards.stream().mapToLong(SendingThread::getEncodeQueueDepth).sum();
+    }
 
-            JSONObject outputJson = new JSONObject();
-            outputJson.put("ddsource", "cportal");
-            outputJson.put("ddtags", "vdom:" + vdom + ",lb_partition:" + lb_partition + ",log_type:" + logType);
-            outputJson.put("hostname", json.has("hostname") ? json.getString("hostname") : "");
-            outputJson.put("message", json.toString());
-            outputJson.put("service", "cportal");
+    /**
+     * Encoded packages waiting to be sent, over all shards.
+     */
+    public long getTransmitQueueDepth() {
+        return shards.stream().mapToLong(SendingThread::getTransmitQueueDepth).sum();
+    }
 
-            jsonList.put(outputJson);
-        }
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
-            gzipOutputStream.write(jsonList.toString().getBytes(StandardCharsets.UTF_8));
-            jsonList.clear();
-        } catch (IOException e) {
-            log.error("Creating GZIP failed", e);
-        }
-        byte[] gzippedBytes = outputStream.toByteArray();
+    /**
+     * Current concurrent request limit, over all shards.
+     */
+    public long getConcurrencyLimit() {
+        return shards.stream().mapToLong(shard -> shard.getLimiter().getLimit()).sum();
+    }
 
-        HttpPost httpPost = new HttpPost(url);
-        httpPost.setHeader("Accept", "application/json");
-        httpPost.setHeader("Content-Type", "application/json");
-        httpPost.setHeader("Content-Encoding", "gzip");
-        httpPost.setHeader("DD-API-KEY", apiKey);
-        httpPost.setEntity(new ByteArrayEntity(gzippedBytes));
+    /**
+     * Messages per package the shards currently aim for, averaged over all shards.
+     */
+    public long getTargetPackageSize() {
+        return (long) shards.stream().mapToInt(shard -> shard.getBatchSizeController().getBatchSize())
+                .average().orElse(0);
+    }
 
-        try(CloseableHttpResponse httpResponse = httpClient.execute(httpPost)) {
-            int statusCode = httpResponse.getStatusLine().getStatusCode();
-            if (statusCode != 202) {
-                log.error("Error - wrong response - status code: {}", statusCode);
-            }
+    private EncodedBatch encodePackage(Batch batch) {
+        GzipCompressor gzip = compressor.get();
+        String query;
+        GzipBody body;
+        Timer.Context encodeTime = metrics.startEncode();
+        try {
+            gzip.start();
+            query = encoder.get().writeBatch(batch.getMessages(), gzip);
+            body = gzip.finish();
         } catch (IOException e) {
-            log.error("Executing post request failed", e);
+            log.error("Creating GZIP failed", e);
+            return null;
+        } finally {
+            encodeTime.stop();
         }
+        metrics.encoded(batch.size(), gzip.getUncompressedLength(), body.getLength());
+        return new EncodedBatch(body, query, batch);
+    }
+
+    private void sendPackage(EncodedBatch batch, Consumer<ConcurrencyLimiter.Result> done) {
+        sender.send(batch.getBody(), batch.getQuery(), batch.size(), done);
     }
 
     @Override
     public void write(Message message) throws Exception {
-        queue.put(message);
-        if (queue.remainingCapacity() == 0) {
-            thread.notifyThread();
+        if (!running.get()) {
+            messagesDropped();
+            return;
+        }
+        if (spool != null && !sender.isAvailable() && spool(message)) {
+            return;
+        }
+        RingBuffer<Message> queue = shardFor(message).getQueue();
+        long size = BatchAccumulator.estimateSize(message);
+        if (queue.offer(message, size)) {
+            metrics.enqueued(1);
+        } else {
+            overflow(queue, message, size);
         }
     }
 
     @Override
     public void write(List<Message> messages) throws Exception {
-        for (Message msg : messages) {
-            write(msg);
+        if (!running.get()) {
+            messages.forEach(message -> messagesDropped());
+            return;
+        }
+        if (spool != null && !sender.isAvailable()) {
+            for (Message message : messages) {
+                write(message);
+            }
+            return;
+        }
+        if (shards.size() == 1 || routingField.isEmpty()) {
+            write(shardFor(null).getQueue(), messages);
+            return;
+        }
+        List<List<Message>> routed = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            routed.add(new ArrayList<>());
+        }
+        for (Message message : messages) {
+            routed.get(shardIndex(message)).add(message);
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            if (!routed.get(i).isEmpty()) {
+                write(shards.get(i).getQueue(), routed.get(i));
+            }
+        }
+    }
+
+    private void write(RingBuffer<Message> queue, List<Message> messages) throws InterruptedException {
+        long[] sizes = new long[messages.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = BatchAccumulator.estimateSize(messages.get(i));
+        }
+        int written = 0;
+        while (written < sizes.length) {
+            int accepted = queue.offer(messages, sizes, written);
+            if (accepted == 0) {
+                overflow(queue, messages.get(written), sizes[written]);
+                accepted = 1;
+            } else {
+                metrics.enqueued(accepted);
+            }
+            written += accepted;
+        }
+    }
+
+    /**
+     * Picks the shard by the hash of the routing field, or by the writing thread if no field is configured.
+     */
+    private SendingThread shardFor(Message message) {
+        if (shards.size() == 1) {
+            return shards.get(0);
         }
+        return shards.get(routingField.isEmpty() || message == null
+                ? (int) (Thread.currentThread().getId() % shards.size())
+                : shardIndex(message));
     }
 
-    public interface Factory extends MessageOutput.Factory<DataDog> {
+    private int shardIndex(Message message) {
+        Object value = message.getField(routingField);
+        return value == null ? 0 : Math.floorMod(value.hashCode(), shards.size());
+    }
+
+    private void overflow(RingBuffer<Message> queue, Message message, long size) throws InterruptedException {
+        switch (overflowPolicy) {
+            case SPILL:
+                // without a spool, or with a full one, wait like the block policy
+                if ((spool != null && spool(message)) || offerBlocking(queue, message, size)) {
+                    return;
+                }
+                break;
+            case BLOCK:
+                if (offerBlocking(queue, message, size)) {
+                    return;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(message, size)) {
+                    if (queue.poll() != null) {
+                        messagesDropped();
+                    }
+                }
+                metrics.enqueued(1);
+                return;
+            default:
+                break;
+        }
+        messagesDropped();
+    }
+
+    private boolean offerBlocking(RingBuffer<Message> queue, Message message, long size)
+            throws InterruptedException {
+        if (queue.offer(message, size, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+            metrics.enqueued(1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the message to the disk spool.
+     *
+     * @return false if the spool is full or cannot be written
+     */
+    private boolean spool(Message message) {
+        EntryBuffer buffer = spoolBuffer.get();
+        try {
+            encoder.get().writeEntry(message, buffer);
+            return spool.append(buffer.getBuffer(), buffer.size());
+        } catch (IOException e) {
+            log.error("Writing to the spool failed", e);
+            return false;
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    private void messagesDropped() {
+        metrics.dropped();
+        long total = dropped.incrementAndGet();
+        if (total % DROP_LOG_INTERVAL == 1) {
+            log.warn("Buffer full or output stopped, {} messages dropped so far (overflow policy: {})",
+                    total, overflowPolicy.getConfigName());
+        }
+    }
+
+    public interface Factory extends MessageOutput.Factory2<DataDog> {
         @Override
-        DataDog create(Stream steam, Configuration configuration);
+        DataDog create(Output output, Stream stream, Configuration configuration);
 
         @Override
         Config getConfig();
@@ -194,17 +544,272 @@ public class DataDog implements MessageOutput {
                             "",
                             "API Key",
                             ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new DropdownField("messageFormat",
+                            "Message format",
+                            MessageFormat.NESTED.getConfigName(),
+                            MessageFormat.choices(),
+                            "Whether the message fields are sent as a JSON string in the message attribute or as top-level Datadog attributes",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new TextField("ddsource",
+                            "Source",
+                            DEFAULT_SOURCE,
+                            "Value of the ddsource attribute",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new TextField("service",
+                            "Service",
+                            DEFAULT_SERVICE,
+                            "Value of the service attribute",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new TextField("tagTemplate",
+                            "Tag template",
+                            TagTemplate.DEFAULT,
+                            "Comma-separated ddtags; ${field} is replaced by the message field, ${field:-default} falls back to a default when the field is missing or empty",
+                            ConfigurationField.Optional.OPTIONAL));
+            configurationRequest.addField(
+                    new BooleanField("hoistSharedAttributes",
+                            "Send shared attributes as query parameters",
+                            false,
+                            "Send ddsource, service and, when all messages of a package share them, ddtags and hostname once as request query parameters instead of in every message"));
             configurationRequest.addField(
                     new NumberField("packageSize",
                             "Package size",
                             400,
-                            "How many messages should be wrapped in one post request",
+                            "How many messages should be wrapped in one post request (at most 1000); with a latency target this is the size to start with",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("minPackageSize",
+                            "Minimum package size",
+                            DEFAULT_MIN_PACKAGE_SIZE,
+                            "Fewest messages per post request the adaptive package size may choose",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("maxPackageSize",
+                            "Maximum package size",
+                            DEFAULT_MAX_PACKAGE_SIZE,
+                            "Most messages per post request the adaptive package size may choose (at most 1000)",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("batchLatencyTargetMs",
+                            "Package latency target (ms)",
+                            DEFAULT_BATCH_LATENCY_TARGET_MS,
+                            "99th percentile time from packaging a message to the intake accepting it that the package size adapts to while messages are backed up; 0 keeps the package size fixed",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("maxPackageBytes",
+                            "Maximum package bytes",
+                            DEFAULT_MAX_PACKAGE_BYTES,
+                            "Estimated uncompressed size at which a package is sent even if it is not full (at most 5 MB)",
                             ConfigurationField.Optional.NOT_OPTIONAL));
             configurationRequest.addField(
                     new NumberField("concurrentConnections",
                             "Number of concurrent connections",
                             3,
-                            "Number of concurrent connections",
+                            "Concurrent requests per shard to start with; the limit then adapts to the intake's latency and throttling",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("minConnections",
+                            "Minimum concurrent connections",
+                            DEFAULT_MIN_CONNECTIONS,
+                            "Lowest concurrent request limit per shard",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("maxConnections",
+                            "Maximum concurrent connections",
+                            DEFAULT_MAX_CONNECTIONS,
+                            "Highest concurrent request limit per shard; set minimum and maximum to the same value for a fixed limit",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new DropdownField("transport",
+                            "HTTP transport",
+                            Transport.SYNC,
+                            Transport.choices(),
+                            "The non-blocking client keeps requests in flight without holding a thread for each",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("maxConnectionsPerRoute",
+                            "Maximum connections per route",
+                            0,
+                            "Connections to the intake host; 0 allows all concurrent connections of all shards",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("keepAliveMs",
+                            "Keep-alive (ms)",
+                            ConnectionSettings.DEFAULT_KEEP_ALIVE_MS,
+                            "Longest time an idle connection is reused; a shorter Keep-Alive header from the intake wins",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("validateAfterInactivityMs",
+                            "Validate after inactivity (ms)",
+                            ConnectionSettings.DEFAULT_VALIDATE_AFTER_INACTIVITY_MS,
+                            "Pooled connections idle for longer are checked before reuse",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("idleTimeoutMs",
+                            "Idle connection timeout (ms)",
+                            ConnectionSettings.DEFAULT_IDLE_TIMEOUT_MS,
+                            "Idle and expired connections are closed in the background after this time",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("maxRetries",
+                            "Maximum retries",
+                            DEFAULT_MAX_RETRIES,
+                            "How often a package is retried after a timeout, 429 or 5xx response or connection error",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("retryBackoffMs",
+                            "Retry backoff (ms)",
+                            DEFAULT_RETRY_BACKOFF_MS,
+                            "Base of the randomized exponential backoff between retries; Retry-After headers are honoured",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("retryMaxBackoffMs",
+                            "Maximum retry backoff (ms)",
+                            DEFAULT_RETRY_MAX_BACKOFF_MS,
+                            "Upper bound of the backoff between retries",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("retryBufferSizeMb",
+                            "Retry buffer size (MB)",
+                            DEFAULT_RETRY_BUFFER_SIZE_MB,
+                            "Compressed size of the packages that can wait for a retry; further failed packages are dropped",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("breakerWindow",
+                            "Circuit breaker window",
+                            DEFAULT_BREAKER_WINDOW,
+                            "Number of recent requests the failure rate is computed over; 0 disables the circuit breaker",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("breakerFailureRate",
+                            "Circuit breaker failure rate (%)",
+                            DEFAULT_BREAKER_FAILURE_RATE,
+                            "Share of failed requests (connection errors, timeouts, 5xx) in the window that opens the breaker",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("breakerOpenMs",
+                            "Circuit breaker probe interval (ms)",
+                            DEFAULT_BREAKER_OPEN_MS,
+                            "How long the breaker stays open before a single probe request is sent",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("holdingBufferSizeMb",
+                            "Holding buffer size (MB)",
+                            DEFAULT_HOLDING_BUFFER_SIZE_MB,
+                            "Compressed size of the packages kept while the breaker is open; further packages are dropped",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new TextField("spoolDirectory",
+                            "Spool directory",
+                            "",
+                            "Directory for the disk spool that takes messages while the intake is unavailable or, with the spill-to-disk policy, while the buffer is full; leave empty to disable",
+                            ConfigurationField.Optional.OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("spoolSegmentMb",
+                            "Spool segment size (MB)",
+                            DEFAULT_SPOOL_SEGMENT_MB,
+                            "Size of each memory-mapped spool file",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("spoolSizeMb",
+                            "Spool size (MB)",
+                            DEFAULT_SPOOL_SIZE_MB,
+                            "Disk space the spool may use; further messages fall back to the in-memory buffer",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new TextField("failedBatchDirectory",
+                            "Failed package directory",
+                            "",
+                            "Directory that keeps compressed packages which ran out of retries or buffer room, to be replayed once the intake is available; leave empty to drop them",
+                            ConfigurationField.Optional.OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("failedBatchSizeMb",
+                            "Failed package storage size (MB)",
+                            DEFAULT_FAILED_BATCH_SIZE_MB,
+                            "Disk space the failed packages may use; further failed packages are dropped",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("replayBytesPerSecond",
+                            "Replay rate (bytes/s)",
+                            DEFAULT_REPLAY_BYTES_PER_SECOND,
+                            "Compressed bytes per second at most that failed packages are replayed with",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("shardCount",
+                            "Number of shards",
+                            1,
+                            "Independent buffer and sending thread pairs; the buffer capacity and size are split between them",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("encodeWorkers",
+                            "Encoding threads",
+                            DEFAULT_ENCODE_WORKERS,
+                            "Threads per shard that encode and compress packages while others are being sent",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("stageQueueSize",
+                            "Pipeline queue size",
+                            DEFAULT_STAGE_QUEUE_SIZE,
+                            "Packages that can wait between the batching, encoding and sending stages of a shard",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("traceIntervalSeconds",
+                            "Latency summary interval (s)",
+                            DEFAULT_TRACE_INTERVAL_SECONDS,
+                            "How often the time packages spend in each stage is logged and exported as metrics; 0 disables the tracing",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new TextField("shardRoutingField",
+                            "Shard routing field",
+                            "",
+                            "Message field whose value selects the shard; leave empty to select it by the writing thread",
+                            ConfigurationField.Optional.OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("lingerMs",
+                            "Linger time (ms)",
+                            DEFAULT_LINGER_MS,
+                            "Maximum time a message waits for its package to fill up before a partial package is sent",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new DropdownField("waitStrategy",
+                            "Wait strategy",
+                            WaitStrategy.PARK,
+                            WaitStrategy.choices(),
+                            "How the sending thread waits for new messages and writers wait for free space in the buffer",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("bufferCapacity",
+                            "Buffer capacity",
+                            DEFAULT_BUFFER_CAPACITY,
+                            "How many messages can wait in memory to be sent, independent of the package size",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("bufferSizeMb",
+                            "Buffer size (MB)",
+                            DEFAULT_BUFFER_SIZE_MB,
+                            "Estimated size of the messages that can wait in memory to be sent",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new DropdownField("overflowPolicy",
+                            "Overflow policy",
+                            OverflowPolicy.BLOCK.getConfigName(),
+                            OverflowPolicy.choices(),
+                            "What happens to new messages while the buffer is full",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("blockTimeoutMs",
+                            "Block timeout (ms)",
+                            DEFAULT_BLOCK_TIMEOUT_MS,
+                            "How long the block policy waits for free space before the message is dropped",
+                            ConfigurationField.Optional.NOT_OPTIONAL));
+            configurationRequest.addField(
+                    new NumberField("shutdownTimeoutMs",
+                            "Shutdown timeout (ms)",
+                            DEFAULT_SHUTDOWN_TIMEOUT_MS,
+                            "How long stopping the output may take to send the buffered messages",
                             ConfigurationField.Optional.NOT_OPTIONAL));
 
 
@@ -16,10 +16,8 @@
  */
 package com.tietoevry.datadog;
 
-import com.google.inject.multibindings.MapBinder;
 import org.graylog2.plugin.PluginConfigBean;
 import org.graylog2.plugin.PluginModule;
-import org.graylog2.plugin.outputs.MessageOutput;
 
 import java.util.Collections;
 import java.util.Set;
@@ -58,7 +56,6 @@ public class DataDogModule extends PluginModule {
          *
          * addConfigBeans();
          */
-        MapBinder<String, MessageOutput.Factory<? extends MessageOutput>> outputMapBinder = outputsMapBinder();
-        installOutput(outputMapBinder, DataDog.class, DataDog.Factory.class);
+        addMessageOutput2(DataDog.class, DataDog.Factory.class);
     }
 }
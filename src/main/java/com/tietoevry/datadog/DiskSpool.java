@@ -0,0 +1,404 @@
+package com.tietoevry.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only spool of log entries on disk, kept in memory-mapped segment files of a fixed size.
+ *
+ * Every record is stored as {@code [length][crc32][bytes]}; a zero length marks the end of the data in a
+ * segment. Records are read back in order and only forgotten once they are acknowledged: the read position
+ * is persisted in a checkpoint file that is replaced atomically, and segments before it are deleted. After
+ * a restart reading resumes at the checkpoint and appending continues after the last record whose checksum
+ * is intact, so a torn write at crash time is overwritten instead of being sent.
+ *
+ * The spool holds a lock on its directory while it is open, so a second spool on the same directory fails
+ * to open instead of corrupting the segments. Mappings are released explicitly when a segment is left,
+ * deleted or the spool is closed, so deleted segments give their disk space back right away instead of
+ * when the garbage collector gets to the buffer.
+ */
+public class DiskSpool implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String LOCK = "lock";
+    private static final int HEADER_SIZE = 8;
+
+    private final Logger log = LoggerFactory.getLogger(DiskSpool.class);
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxSegments;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final CRC32 appendCrc = new CRC32();
+
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private int writePosition;
+
+    private long readSegment;
+    private MappedByteBuffer readBuffer;
+    private long readBufferSegment = -1;
+    private int readPosition;
+    private boolean closed;
+
+    /**
+     * Where a read ended; passed back to {@link #acknowledge(Position)} once the records are delivered.
+     */
+    public static class Position {
+        private final long segment;
+        private final int offset;
+
+        private Position(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    public DiskSpool(Path directory, int segmentSize, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxBytes / segmentSize);
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = tryLock(lockChannel);
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Spool directory " + directory + " is in use by another output");
+        }
+
+        try {
+            TreeSet<Long> segments = listSegments();
+            Position checkpoint = readCheckpoint();
+            readSegment = checkpoint != null ? checkpoint.segment : segments.isEmpty() ? 0 : segments.first();
+            readPosition = checkpoint != null ? checkpoint.offset : 0;
+            for (Long segment : segments.headSet(readSegment)) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+
+            writeSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.last());
+            writeBuffer = map(writeSegment, FileChannel.MapMode.READ_WRITE);
+            writePosition = recover(writeBuffer, writeSegment == readSegment ? readPosition : 0);
+        } catch (IOException | RuntimeException e) {
+            // closing the channel releases the lock
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return false if the spool has reached its size limit or the record is larger than a segment
+     */
+    public boolean append(byte[] record) throws IOException {
+        return append(record, record.length);
+    }
+
+    /**
+     * Appends the first {@code length} bytes of the array as a record.
+     *
+     * @return false if the spool has reached its size limit or the record is larger than a segment
+     */
+    public synchronized boolean append(byte[] record, int length) throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (HEADER_SIZE + length > segmentSize) {
+            log.warn("Entry of {} bytes does not fit into a spool segment, not spooling it", length);
+            return false;
+        }
+        if (writePosition + HEADER_SIZE + length > segmentSize) {
+            if (writeSegment - readSegment + 1 >= maxSegments) {
+                return false;
+            }
+            writeBuffer.force();
+            unmap(writeBuffer);
+            writeSegment++;
+            writeBuffer = map(writeSegment, FileChannel.MapMode.READ_WRITE);
+            writePosition = 0;
+        }
+        appendCrc.reset();
+        appendCrc.update(record, 0, length);
+        writeBuffer.position(writePosition + 4);
+        writeBuffer.putInt((int) appendCrc.getValue());
+        writeBuffer.put(record, 0, length);
+        writeBuffer.putInt(writePosition, length);
+        writePosition += HEADER_SIZE + length;
+        return true;
+    }
+
+    public synchronized boolean isEmpty() {
+        return closed || (readSegment == writeSegment && readPosition >= writePosition);
+    }
+
+    /**
+     * Reads records from the current read position without consuming them. Reading again without an
+     * acknowledgement returns the same records. {@code end[0]} receives the position after the last record.
+     */
+    public synchronized List<byte[]> read(int maxRecords, long maxBytes, Position[] end) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        if (closed) {
+            end[0] = new Position(readSegment, readPosition);
+            return records;
+        }
+        long segment = readSegment;
+        int position = readPosition;
+        long bytes = 0;
+        while (records.size() < maxRecords && !(segment == writeSegment && position >= writePosition)) {
+            ByteBuffer buffer = readBuffer(segment);
+            int length = position + HEADER_SIZE <= segmentSize ? buffer.getInt(position) : 0;
+            byte[] record = length > 0 ? readRecord(buffer, position, length) : null;
+            if (record == null) {
+                if (length != 0) {
+                    log.warn("Corrupt record in spool segment {} at offset {}, skipping the rest of the segment",
+                            segment, position);
+                }
+                if (segment == writeSegment) {
+                    // skip to the end of the appended records, or the corrupt one would block all after it
+                    position = writePosition;
+                    break;
+                }
+                segment++;
+                position = 0;
+                continue;
+            }
+            if (!records.isEmpty() && bytes + length > maxBytes) {
+                break;
+            }
+            records.add(record);
+            bytes += length;
+            position += HEADER_SIZE + length;
+        }
+        end[0] = new Position(segment, position);
+        return records;
+    }
+
+    /**
+     * Whether a read ended past the current read position.
+     */
+    public synchronized boolean isAhead(Position position) {
+        return position.segment > readSegment || (position.segment == readSegment && position.offset > readPosition);
+    }
+
+    /**
+     * Marks everything before the position as delivered, persists that and deletes consumed segments.
+     */
+    public synchronized void acknowledge(Position position) throws IOException {
+        if (closed) {
+            return;
+        }
+        writeCheckpoint(position);
+        for (long segment = readSegment; segment < position.segment; segment++) {
+            if (segment == readBufferSegment) {
+                unmap(readBuffer);
+                readBuffer = null;
+                readBufferSegment = -1;
+            }
+            Files.deleteIfExists(segmentPath(segment));
+        }
+        readSegment = position.segment;
+        readPosition = position.offset;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeBuffer.force();
+        unmap(writeBuffer);
+        writeBuffer = null;
+        if (readBuffer != null) {
+            unmap(readBuffer);
+            readBuffer = null;
+            readBufferSegment = -1;
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("Releasing the lock on spool directory {} failed", directory, e);
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another spool in this JVM
+            return null;
+        }
+    }
+
+    private ByteBuffer readBuffer(long segment) throws IOException {
+        if (segment == writeSegment) {
+            return writeBuffer;
+        }
+        if (segment != readBufferSegment) {
+            if (readBuffer != null) {
+                unmap(readBuffer);
+            }
+            readBuffer = map(segment, FileChannel.MapMode.READ_ONLY);
+            readBufferSegment = segment;
+        }
+        return readBuffer;
+    }
+
+    /**
+     * Finds the end of the intact records in a segment. Only a torn record is cleared, together with
+     * everything after it; after a clean shutdown the rest of the segment is still zero and left alone.
+     */
+    private int recover(ByteBuffer buffer, int from) {
+        int position = from;
+        while (position + HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                return position;
+            }
+            if (length < 0 || readRecord(buffer, position, length) == null) {
+                log.warn("Discarding torn record in spool segment at offset {}", position);
+                for (int i = position; i < segmentSize; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                return position;
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Returns the record at the position, or null if it is cut off or its checksum does not match.
+     */
+    private byte[] readRecord(ByteBuffer buffer, int position, int length) {
+        if (position + HEADER_SIZE + length > segmentSize) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_SIZE);
+        slice.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, length);
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? record : null;
+    }
+
+    private MappedByteBuffer map(long segment, FileChannel.MapMode mode) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentPath(segment).toFile(),
+                mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            if (mode != FileChannel.MapMode.READ_ONLY && file.length() < segmentSize) {
+                file.setLength(segmentSize);
+            }
+            return file.getChannel().map(mode, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Releases a mapping right away. Java 9 and later expose this through {@code Unsafe.invokeCleaner},
+     * Java 8 through the buffer's cleaner. The buffer must not be used afterwards.
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null) {
+                    Method cleanMethod = clean.getClass().getMethod("clean");
+                    cleanMethod.setAccessible(true);
+                    cleanMethod.invoke(clean);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Could not unmap spool segment, leaving it to the garbage collector", e);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private TreeSet<Long> listSegments() throws IOException {
+        TreeSet<Long> segments = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {} in spool directory", file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private Position readCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() != 16) {
+            log.warn("Ignoring corrupt spool checkpoint {}", path);
+            return null;
+        }
+        long segment = buffer.getLong();
+        int offset = buffer.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 12);
+        if ((int) crc.getValue() != buffer.getInt()) {
+            log.warn("Ignoring corrupt spool checkpoint {}", path);
+            return null;
+        }
+        return new Position(segment, offset);
+    }
+
+    private void writeCheckpoint(Position position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(position.segment);
+        buffer.putInt(position.offset);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 12);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        Path temp = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,76 @@
+package com.tietoevry.datadog;
+
+/**
+ * A batch encoded into its gzipped request body, ready to be sent.
+ */
+public class EncodedBatch {
+    private final GzipBody body;
+    private final String query;
+    private final int messages;
+    private final long estimatedBytes;
+    private final long enqueuedNanos;
+    private final long createdNanos;
+    private final long closedNanos;
+    private final long encodedNanos;
+
+    public EncodedBatch(GzipBody body, String query, Batch batch) {
+        this.body = body;
+        this.query = query;
+        this.messages = batch.size();
+        this.estimatedBytes = batch.getEstimatedBytes();
+        this.enqueuedNanos = batch.getEnqueuedNanos();
+        this.createdNanos = batch.getCreatedNanos();
+        this.closedNanos = batch.getClosedNanos();
+        this.encodedNanos = System.nanoTime();
+    }
+
+    public GzipBody getBody() {
+        return body;
+    }
+
+    /**
+     * Query parameters with the attributes shared by the batch, or null.
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    public int size() {
+        return messages;
+    }
+
+    /**
+     * Estimated uncompressed size of the messages.
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the first message was written to the output.
+     */
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the first message was added to the batch.
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the batch was handed to the encoder.
+     */
+    public long getClosedNanos() {
+        return closedNanos;
+    }
+
+    /**
+     * {@link System#nanoTime()} when encoding finished.
+     */
+    public long getEncodedNanos() {
+        return encodedNanos;
+    }
+}
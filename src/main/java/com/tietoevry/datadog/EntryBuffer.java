@@ -0,0 +1,32 @@
+package com.tietoevry.datadog;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A byte array output stream whose array is read in place and kept across {@link #reset()}, so encoding
+ * one entry after another does not allocate. An array that grew far beyond the usual size for a single
+ * large entry is dropped on reset.
+ */
+public class EntryBuffer extends ByteArrayOutputStream {
+    private static final int INITIAL_SIZE = 4 * 1024;
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    public EntryBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * The array holding the bytes written since the last reset; only the first {@link #size()} are valid.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        if (buf.length > MAX_RETAINED_SIZE) {
+            buf = new byte[INITIAL_SIZE];
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.tietoevry.datadog;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.graylog2.plugin.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes Datadog log entries as UTF-8 JSON straight into an output stream, usually the compressor,
+ * without building a JSON tree or a String for the batch. In the {@link MessageFormat#NESTED} format the
+ * message fields end up JSON-encoded in the {@code message} attribute; they are encoded into a character
+ * buffer that is reused for every entry. In the {@link MessageFormat#ATTRIBUTES} format they are written
+ * as attributes of the entry itself, which saves escaping them twice and parsing them again on the
+ * Datadog side.
+ *
+ * With {@code hoistSharedAttributes}, attributes that are the same for every entry of a batch are sent
+ * once, as query parameters of the request, instead of in every entry. ddsource and service are the same
+ * for the whole output, so they always move; ddtags and hostname move when no entry differs.
+ *
+ * An encoder is not thread-safe; use one per thread.
+ */
+public class EntryEncoder {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final String HOSTNAME_FIELD = "hostname";
+
+    private final MessageFormat format;
+    private final TagTemplate.Renderer tags;
+    private final String source;
+    private final String service;
+    private final boolean hoistSharedAttributes;
+    private final CharBuffer fields = new CharBuffer();
+    private String[] batchTags = new String[0];
+    private String[] batchHostnames = new String[0];
+    private String lastQueryTags;
+    private String lastQueryHostname;
+    private String lastQuery;
+
+    public EntryEncoder(MessageFormat format, TagTemplate tags, String source, String service,
+                        boolean hoistSharedAttributes) {
+        this.format = format;
+        this.tags = tags.newRenderer();
+        this.source = source;
+        this.service = service;
+        this.hoistSharedAttributes = hoistSharedAttributes;
+    }
+
+    /**
+     * Writes the messages as a JSON array of entries.
+     *
+     * @return encoded query parameters with the attributes left out of the entries, or null
+     */
+    public String writeBatch(List<Message> messages, OutputStream out) throws IOException {
+        int size = messages.size();
+        if (batchTags.length < size) {
+            batchTags = new String[size];
+            batchHostnames = new String[size];
+        }
+        for (int i = 0; i < size; i++) {
+            batchTags[i] = tags.render(messages.get(i));
+            batchHostnames[i] = hostname(messages.get(i));
+        }
+        boolean hoist = hoistSharedAttributes && size > 0;
+        boolean sharedTags = hoist && allEqual(batchTags, size);
+        boolean sharedHostname = hoist && allEqual(batchHostnames, size) && !batchHostnames[0].isEmpty();
+        String query = hoist
+                ? query(sharedTags ? batchTags[0] : null, sharedHostname ? batchHostnames[0] : null)
+                : null;
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            for (int i = 0; i < size; i++) {
+                writeEntry(messages.get(i), hoist ? null : source, sharedTags ? null : batchTags[i],
+                        sharedHostname ? null : batchHostnames[i], hoist ? null : service, generator);
+            }
+            generator.writeEndArray();
+        } finally {
+            Arrays.fill(batchTags, 0, size, null);
+            Arrays.fill(batchHostnames, 0, size, null);
+        }
+        return query;
+    }
+
+    /**
+     * Writes a single entry as a JSON object with all its attributes.
+     */
+    public void writeEntry(Message message, OutputStream out) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            writeEntry(message, source, tags.render(message), hostname(message), service, generator);
+        }
+    }
+
+    /**
+     * Writes an entry; attributes passed as null are left out.
+     */
+    private void writeEntry(Message message, String source, String tags, String hostname, String service,
+                            JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        if (source != null) {
+            generator.writeStringField("ddsource", source);
+        }
+        if (tags != null) {
+            generator.writeStringField("ddtags", tags);
+        }
+        if (hostname != null) {
+            generator.writeStringField("hostname", hostname);
+        }
+        if (service != null) {
+            generator.writeStringField("service", service);
+        }
+        if (format == MessageFormat.ATTRIBUTES) {
+            writeAttributes(message, generator);
+        } else {
+            generator.writeFieldName("message");
+            encodeFields(message);
+            generator.writeString(fields.chars, 0, fields.length);
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes the fields as attributes, leaving out the ones that would repeat the reserved attributes.
+     */
+    private static void writeAttributes(Message message, JsonGenerator generator) throws IOException {
+        for (Map.Entry<String, Object> field : message.getFieldsEntries()) {
+            if (field.getValue() != null && !isReserved(field.getKey())) {
+                generator.writeFieldName(field.getKey());
+                writeValue(field.getValue(), generator);
+            }
+        }
+    }
+
+    private static boolean isReserved(String name) {
+        switch (name) {
+            case "ddsource":
+            case "ddtags":
+            case "hostname":
+            case "service":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void encodeFields(Message message) throws IOException {
+        fields.length = 0;
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(fields)) {
+            generator.writeStartObject();
+            for (Map.Entry<String, Object> field : message.getFieldsEntries()) {
+                if (field.getValue() != null) {
+                    generator.writeFieldName(field.getKey());
+                    writeValue(field.getValue(), generator);
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * The query for the shared attributes; consecutive batches usually share the same ones, so the last
+     * query is kept.
+     */
+    private String query(String sharedTags, String sharedHostname) throws IOException {
+        if (lastQuery != null && Objects.equals(sharedTags, lastQueryTags)
+                && Objects.equals(sharedHostname, lastQueryHostname)) {
+            return lastQuery;
+        }
+        StringBuilder query = new StringBuilder()
+                .append("ddsource=").append(URLEncoder.encode(source, "UTF-8"))
+                .append("&service=").append(URLEncoder.encode(service, "UTF-8"));
+        if (sharedTags != null) {
+            query.append("&ddtags=").append(URLEncoder.encode(sharedTags, "UTF-8"));
+        }
+        if (sharedHostname != null) {
+            query.append("&hostname=").append(URLEncoder.encode(sharedHostname, "UTF-8"));
+        }
+        lastQueryTags = sharedTags;
+        lastQueryHostname = sharedHostname;
+        lastQuery = query.toString();
+        return lastQuery;
+    }
+
+    private static boolean allEqual(String[] values, int size) {
+        for (int i = 1; i < size; i++) {
+            if (!values[i].equals(values[0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String hostname(Message message) {
+        return FieldValues.asString(message.getField(HOSTNAME_FIELD));
+    }
+
+    static void writeValue(Object value, JsonGenerator generator) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDecimal((Number) value, generator);
+        } else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        } else if (value instanceof BigDecimal) {
+            // without trailing zeros, like org.json wrote it
+            generator.writeNumber(FieldValues.decimal((BigDecimal) value));
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getValue() != null) {
+                    generator.writeFieldName(String.valueOf(entry.getKey()));
+                    writeValue(entry.getValue(), generator);
+                }
+            }
+            generator.writeEndObject();
+        } else if (value instanceof Collection) {
+            generator.writeStartArray();
+            for (Object element : (Collection<?>) value) {
+                writeValue(element, generator);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Object[]) {
+            writeValue(Arrays.asList((Object[]) value), generator);
+        } else {
+            // timestamps and anything else go out in their string form
+            generator.writeString(value.toString());
+        }
+    }
+
+    /**
+     * Writes a floating point number without trailing zeros, and as a string if it is not finite.
+     */
+    private static void writeDecimal(Number value, JsonGenerator generator) throws IOException {
+        double number = value.doubleValue();
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            generator.writeString(value.toString());
+            return;
+        }
+        generator.writeNumber(FieldValues.decimal(value));
+    }
+
+    /**
+     * A writer over a growing character array that is kept between entries.
+     */
+    private static final class CharBuffer extends Writer {
+        private char[] chars = new char[1024];
+        private int length;
+
+        @Override
+        public void write(char[] source, int offset, int count) {
+            ensureCapacity(length + count);
+            System.arraycopy(source, offset, chars, length, count);
+            length += count;
+        }
+
+        @Override
+        public void write(String source, int offset, int count) {
+            ensureCapacity(length + count);
+            source.getChars(offset, offset + count, chars, length);
+            length += count;
+        }
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(length + 1);
+            chars[length++] = (char) c;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
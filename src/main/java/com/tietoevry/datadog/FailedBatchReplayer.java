@@ -0,0 +1,81 @@
+package com.tietoevry.datadog;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends the batches of the {@link FailedBatchStore} oldest first while the intake is available. The
+ * stored bodies go out as they are, streamed from disk, at no more than the configured bytes per second
+ * so the replay does not crowd out live traffic. A batch is deleted only after the intake has taken it.
+ * Like the {@link SpoolDrainer}, the replayer probes an open circuit breaker when the probe is due.
+ */
+public class FailedBatchReplayer extends Thread {
+    private static final long IDLE_MS = 1000;
+
+    private final FailedBatchStore store;
+    private final RetryingSender sender;
+    private final RateLimiter rateLimiter;
+    private final long retryDelayMs;
+    private final AtomicBoolean isRunning = new AtomicBoolean(true);
+    private final Logger log = LoggerFactory.getLogger(FailedBatchReplayer.class);
+
+    public FailedBatchReplayer(FailedBatchStore store, RetryingSender sender, long bytesPerSecond, long retryDelayMs) {
+        this.store = store;
+        this.sender = sender;
+        this.rateLimiter = RateLimiter.create(Math.max(1, bytesPerSecond));
+        this.retryDelayMs = retryDelayMs;
+        setDaemon(true);
+    }
+
+    public void stopThread() {
+        isRunning.set(false);
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (isRunning.get()) {
+            try {
+                if (store.isEmpty() || !sender.canSend()) {
+                    TimeUnit.MILLISECONDS.sleep(IDLE_MS);
+                    continue;
+                }
+                replay(store.list());
+            } catch (InterruptedException e) {
+                if (isRunning.get()) {
+                    log.error("Interrupted failed batch replayer", e);
+                }
+            } catch (IOException | ExecutionException e) {
+                log.error("Replaying failed batches failed", e);
+            }
+        }
+    }
+
+    private void replay(List<FailedBatchStore.Entry> entries)
+            throws IOException, InterruptedException, ExecutionException {
+        for (FailedBatchStore.Entry entry : entries) {
+            if (!isRunning.get() || !sender.canSend()) {
+                return;
+            }
+            rateLimiter.acquire((int) Math.min(Integer.MAX_VALUE, Math.max(1, entry.getBytes())));
+            CompletableFuture<Boolean> delivered = new CompletableFuture<>();
+            sender.sendOnce(entry.getBody(), entry.getQuery(), entry.getMessages(), delivered::complete);
+            if (!delivered.get()) {
+                TimeUnit.MILLISECONDS.sleep(retryDelayMs);
+                return;
+            }
+            store.delete(entry);
+        }
+        if (entries.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(IDLE_MS);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.tietoevry.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps batches the intake did not take as the gzipped request bodies they were sent with, so replaying
+ * them needs neither encoding nor compression. Each batch is a {@code batch-<sequence>.json.gz} body next
+ * to a {@code .properties} file with its metadata, including the query parameters that carry the
+ * attributes shared by the batch. The metadata is written first and the body is moved into place
+ * atomically, so a visible body always is complete and has its metadata.
+ *
+ * Batches that fail inside a transport callback are handed to {@link #storeLater}, which writes them from a
+ * thread of the store, so the I/O threads of the http client never wait for the disk.
+ */
+public class FailedBatchStore implements Closeable {
+    private static final String PREFIX = "batch-";
+    private static final String BODY_SUFFIX = ".json.gz";
+    private static final String META_SUFFIX = ".properties";
+    private static final String TMP_SUFFIX = ".tmp";
+    /** Bodies waiting for the writer thread, so a slow disk cannot pile them up on the heap. */
+    private static final long MAX_PENDING_BYTES = 32 * 1024 * 1024;
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
+    private final Logger log = LoggerFactory.getLogger(FailedBatchStore.class);
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final ExecutorService writer;
+    private long sequence;
+
+    public FailedBatchStore(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "datadog-store-" + directory.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(BODY_SUFFIX)) {
+                    bytes.addAndGet(Files.size(file));
+                    sequence = Math.max(sequence, sequenceOf(name, BODY_SUFFIX) + 1);
+                } else if (name.endsWith(META_SUFFIX)) {
+                    sequence = Math.max(sequence, sequenceOf(name, META_SUFFIX) + 1);
+                    // metadata of a batch whose body was never moved into place
+                    if (!Files.exists(sibling(file, META_SUFFIX, BODY_SUFFIX))) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a gzipped request body.
+     *
+     * @return false if the store is full or cannot be written
+     */
+    public boolean store(GzipBody body, String query, int messages) {
+        return reserve(body) && write(body, query, messages);
+    }
+
+    /**
+     * Stores a gzipped request body from the writer thread. {@code stored} runs once the body is written
+     * or refused, after which the caller may release it.
+     */
+    public void storeLater(GzipBody body, String query, int messages, Consumer<Boolean> stored) {
+        if (pendingBytes.addAndGet(body.getLength()) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-body.getLength());
+            stored.accept(false);
+            return;
+        }
+        if (!reserve(body)) {
+            pendingBytes.addAndGet(-body.getLength());
+            stored.accept(false);
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    stored.accept(write(body, query, messages));
+                } finally {
+                    pendingBytes.addAndGet(-body.getLength());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingBytes.addAndGet(-body.getLength());
+            bytes.addAndGet(-body.getLength());
+            stored.accept(false);
+        }
+    }
+
+    private boolean reserve(GzipBody body) {
+        if (bytes.addAndGet(body.getLength()) > maxBytes) {
+            bytes.addAndGet(-body.getLength());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean write(GzipBody body, String query, int messages) {
+        String name;
+        synchronized (this) {
+            name = String.format("%s%020d", PREFIX, sequence++);
+        }
+        Properties metadata = new Properties();
+        metadata.setProperty("messages", Integer.toString(messages));
+        metadata.setProperty("created", Long.toString(System.currentTimeMillis()));
+        metadata.setProperty("contentEncoding", "gzip");
+        if (query != null) {
+            metadata.setProperty("query", query);
+        }
+        try {
+            Path meta = directory.resolve(name + META_SUFFIX);
+            Path metaTmp = directory.resolve(name + META_SUFFIX + TMP_SUFFIX);
+            try (OutputStream out = Files.newOutputStream(metaTmp)) {
+                metadata.store(out, null);
+            }
+            Files.move(metaTmp, meta, StandardCopyOption.ATOMIC_MOVE);
+            Path bodyTmp = directory.resolve(name + BODY_SUFFIX + TMP_SUFFIX);
+            try (OutputStream out = Files.newOutputStream(bodyTmp)) {
+                out.write(body.getBytes(), 0, body.getLength());
+            }
+            Files.move(bodyTmp, directory.resolve(name + BODY_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            log.error("Storing failed batch {} in {} failed", name, directory, e);
+            bytes.addAndGet(-body.getLength());
+            return false;
+        }
+    }
+
+    /**
+     * The stored batches, oldest first.
+     */
+    public List<Entry> list() throws IOException {
+        List<Path> bodies = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + BODY_SUFFIX)) {
+            files.forEach(bodies::add);
+        }
+        bodies.sort(null);
+        List<Entry> entries = new ArrayList<>(bodies.size());
+        for (Path body : bodies) {
+            Properties metadata = new Properties();
+            Path meta = sibling(body, BODY_SUFFIX, META_SUFFIX);
+            if (Files.exists(meta)) {
+                try (InputStream in = Files.newInputStream(meta)) {
+                    metadata.load(in);
+                }
+            }
+            entries.add(new Entry(body, metadata.getProperty("query"),
+                    Integer.parseInt(metadata.getProperty("messages", "0"))));
+        }
+        return entries;
+    }
+
+    /**
+     * Deletes a batch after the intake has taken it.
+     */
+    public void delete(Entry entry) throws IOException {
+        long size = Files.size(entry.body);
+        Files.deleteIfExists(sibling(entry.body, BODY_SUFFIX, META_SUFFIX));
+        Files.delete(entry.body);
+        bytes.addAndGet(-size);
+    }
+
+    public boolean isEmpty() {
+        return bytes.get() == 0;
+    }
+
+    /**
+     * Finishes the writes handed to {@link #storeLater}; later ones are refused.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.warn("Failed batches still waiting to be written to {} are lost", directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long sequenceOf(String name, String suffix) {
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static Path sibling(Path file, String suffix, String siblingSuffix) {
+        String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.length() - suffix.length()) + siblingSuffix);
+    }
+
+    public static class Entry {
+        private final Path body;
+        private final String query;
+        private final int messages;
+
+        private Entry(Path body, String query, int messages) {
+            this.body = body;
+            this.query = query;
+            this.messages = messages;
+        }
+
+        public File getBody() {
+            return body.toFile();
+        }
+
+        /**
+         * Query parameters the batch was sent with, or null.
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        public long getBytes() {
+            return body.toFile().length();
+        }
+
+        public int getMessages() {
+            return messages;
+        }
+    }
+}
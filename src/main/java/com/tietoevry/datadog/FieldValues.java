@@ -0,0 +1,47 @@
+package com.tietoevry.datadog;
+
+/**
+ * Turns message field values into the text used for tags and string attributes. Strings and booleans
+ * are returned without allocating; numbers are formatted like in the JSON output.
+ */
+public final class FieldValues {
+    private FieldValues() {
+    }
+
+    /**
+     * @return the text of the value, or an empty string for null
+     */
+    public static String asString(Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "true" : "false";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return decimal((Number) value);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Formats a floating point number without trailing zeros, so 5.0 becomes 5.
+     */
+    public static String decimal(Number value) {
+        String text = value.toString();
+        if (text.indexOf('.') <= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+            return text;
+        }
+        int end = text.length();
+        while (text.charAt(end - 1) == '0') {
+            end--;
+        }
+        if (text.charAt(end - 1) == '.') {
+            end--;
+        }
+        return end == text.length() ? text : text.substring(0, end);
+    }
+}
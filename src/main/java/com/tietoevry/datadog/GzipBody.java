@@ -0,0 +1,44 @@
+package com.tietoevry.datadog;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A gzipped request body in the first {@code length} bytes of a buffer that may come from a
+ * {@link BufferPool}. Whoever holds the body last releases it, after which the buffer is reused.
+ */
+public class GzipBody {
+    private final byte[] bytes;
+    private final int length;
+    private final BufferPool pool;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    GzipBody(byte[] bytes, int length, BufferPool pool) {
+        this.bytes = bytes;
+        this.length = length;
+        this.pool = pool;
+    }
+
+    /**
+     * A body that does not belong to a pool.
+     */
+    public static GzipBody of(byte[] bytes) {
+        return new GzipBody(bytes, bytes.length, null);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the buffer to its pool; further calls have no effect.
+     */
+    public void release() {
+        if (pool != null && released.compareAndSet(false, true)) {
+            pool.release(bytes);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.tietoevry.datadog;
+
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip into buffers taken from a {@link BufferPool}, with one {@link Deflater} that is reset
+ * for each body instead of created and left for the finalizer to end. Unlike
+ * {@link java.util.zip.GZIPOutputStream} it writes the gzip header and trailer itself, so the deflater
+ * can be kept. Flushing does nothing, so the output is compressed as one block stream.
+ *
+ * A compressor is not thread-safe; use one per worker thread and {@link #end()} it when done.
+ */
+public class GzipCompressor extends OutputStream {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int TRAILER_SIZE = 8;
+    private static final int MIN_FREE = 512;
+
+    private final BufferPool pool;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] single = new byte[1];
+    private byte[] buffer;
+    private int length;
+
+    public GzipCompressor(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Starts a new body; a body that was started but not finished is discarded.
+     */
+    public void start() {
+        if (buffer == null) {
+            buffer = pool.acquire();
+        }
+        System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+        length = HEADER.length;
+        deflater.reset();
+        crc.reset();
+    }
+
+    @Override
+    public void write(int b) {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int count) {
+        crc.update(source, offset, count);
+        deflater.setInput(source, offset, count);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Completes the body. The compressor takes a new buffer for the next one.
+     */
+    public GzipBody finish() {
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        ensureFree(TRAILER_SIZE);
+        writeInt((int) crc.getValue());
+        writeInt((int) deflater.getBytesRead());
+        GzipBody body = new GzipBody(buffer, length, pool);
+        pool.recordSize(length);
+        buffer = null;
+        return body;
+    }
+
+    /**
+     * Uncompressed size of the body finished last.
+     */
+    public long getUncompressedLength() {
+        return deflater.getBytesRead();
+    }
+
+    /**
+     * Frees the native deflater state.
+     */
+    public void end() {
+        deflater.end();
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    private void deflate() {
+        ensureFree(MIN_FREE);
+        length += deflater.deflate(buffer, length, buffer.length - length);
+    }
+
+    private void ensureFree(int free) {
+        if (buffer.length - length < free) {
+            byte[] larger = new byte[Math.max(buffer.length * 2, length + free)];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+        }
+    }
+
+    private void writeInt(int value) {
+        buffer[length++] = (byte) value;
+        buffer[length++] = (byte) (value >> 8);
+        buffer[length++] = (byte) (value >> 16);
+        buffer[length++] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,90 @@
+package com.tietoevry.datadog;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking transport that multiplexes concurrent requests as HTTP/2 streams over a small number of
+ * connections. Uses the OkHttp client shipped with Graylog; on a JVM without ALPN support it falls back
+ * to HTTP/1.1 with one connection per request.
+ */
+public class Http2Transport implements Transport {
+    private static final MediaType JSON = MediaType.get("application/json");
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+
+    private final OkHttpClient httpClient;
+    private final String url;
+    private final String apiKey;
+
+    public Http2Transport(String url, String apiKey, ConnectionSettings connections) {
+        this.url = url;
+        this.apiKey = apiKey;
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(connections.getMaxTotal());
+        dispatcher.setMaxRequestsPerHost(connections.getMaxPerRoute());
+        httpClient = new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+                        Math.min(connections.getKeepAliveMs(), connections.getIdleTimeoutMs()), TimeUnit.MILLISECONDS))
+                .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(SOCKET_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .writeTimeout(SOCKET_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public void send(byte[] gzippedBody, int length, String query, Callback callback) {
+        execute(RequestBody.create(JSON, gzippedBody, 0, length), query, callback);
+    }
+
+    @Override
+    public void send(File gzippedBody, String query, Callback callback) {
+        execute(RequestBody.create(JSON, gzippedBody), query, callback);
+    }
+
+    private void execute(RequestBody body, String query, Callback callback) {
+        Request request = new Request.Builder()
+                .url(Transport.withQuery(url, query))
+                .header("Accept", "application/json")
+                .header("Content-Encoding", "gzip")
+                .header("DD-API-KEY", apiKey)
+                .post(body)
+                .build();
+
+        httpClient.newCall(request).enqueue(new okhttp3.Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    callback.completed(response.code(), response.header("Retry-After"));
+                } finally {
+                    response.close();
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                callback.failed(e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+}
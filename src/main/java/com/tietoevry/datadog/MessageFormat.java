@@ -0,0 +1,41 @@
+package com.tietoevry.datadog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How the Graylog fields of a message are laid out in the Datadog log entry.
+ */
+public enum MessageFormat {
+    NESTED("nested", "All fields as a JSON string in the message attribute"),
+    ATTRIBUTES("attributes", "Fields as top-level attributes, the message field as message");
+
+    private final String configName;
+    private final String description;
+
+    MessageFormat(String configName, String description) {
+        this.configName = configName;
+        this.description = description;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    public static MessageFormat fromConfig(String name) {
+        for (MessageFormat format : values()) {
+            if (format.configName.equals(name)) {
+                return format;
+            }
+        }
+        return NESTED;
+    }
+
+    public static Map<String, String> choices() {
+        Map<String, String> choices = new LinkedHashMap<>();
+        for (MessageFormat format : values()) {
+            choices.put(format.configName, format.description);
+        }
+        return choices;
+    }
+}
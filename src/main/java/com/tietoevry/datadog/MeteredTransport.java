@@ -0,0 +1,83 @@
+package com.tietoevry.datadog;
+
+import com.codahale.metrics.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times the requests of another transport and counts them by status code in the {@link OutputMetrics}.
+ * It sits below retries, the spool and the replay, so every request on the wire is measured.
+ */
+public class MeteredTransport implements Transport {
+    private final Transport transport;
+    private final OutputMetrics metrics;
+
+    public MeteredTransport(Transport transport, OutputMetrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void send(byte[] gzippedBody, int length, String query, Callback callback) {
+        MeteredCallback metered = new MeteredCallback(callback);
+        try {
+            transport.send(gzippedBody, length, query, metered);
+        } catch (RuntimeException e) {
+            metered.abandon();
+            throw e;
+        }
+    }
+
+    @Override
+    public void send(File gzippedBody, String query, Callback callback) {
+        MeteredCallback metered = new MeteredCallback(callback);
+        try {
+            transport.send(gzippedBody, query, metered);
+        } catch (RuntimeException e) {
+            metered.abandon();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+
+    private class MeteredCallback implements Callback {
+        private final Callback callback;
+        private final Timer.Context request = metrics.startRequest();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private MeteredCallback(Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void completed(int statusCode, String retryAfter) {
+            if (finished.compareAndSet(false, true)) {
+                metrics.requestCompleted(request, statusCode);
+            }
+            callback.completed(statusCode, retryAfter);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (finished.compareAndSet(false, true)) {
+                metrics.requestFailed(request);
+            }
+            callback.failed(e);
+        }
+
+        /**
+         * Counts a request the transport threw on as failed; the exception goes to the caller.
+         */
+        private void abandon() {
+            if (finished.compareAndSet(false, true)) {
+                metrics.requestFailed(request);
+            }
+        }
+    }
+}
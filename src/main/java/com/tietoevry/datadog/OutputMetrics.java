@@ -0,0 +1,121 @@
+package com.tietoevry.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The metrics of one output, registered in Graylog's {@link MetricRegistry} under
+ * {@code com.tietoevry.datadog.DataDog.<output id>} so they show up with the other metrics of the node.
+ * Every output has its own, even when several write the same stream. {@link #remove()} unregisters them
+ * when the output stops.
+ */
+public class OutputMetrics {
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Meter enqueued;
+    private final Meter dropped;
+    private final Histogram packageMessages;
+    private final Histogram packageBytes;
+    private final Histogram compressionRatio;
+    private final Timer encodeTime;
+    private final Timer requestTime;
+    private final Meter requestFailures;
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+    private final ConcurrentMap<Integer, Meter> statusCodes = new ConcurrentHashMap<>();
+
+    public OutputMetrics(MetricRegistry registry, String outputId) {
+        this.registry = registry;
+        this.prefix = MetricRegistry.name(DataDog.class, outputId);
+        this.enqueued = registry.meter(name("enqueued"));
+        this.dropped = registry.meter(name("dropped"));
+        this.packageMessages = registry.histogram(name("packageMessages"));
+        this.packageBytes = registry.histogram(name("packageBytes"));
+        this.compressionRatio = registry.histogram(name("compressionRatioPercent"));
+        this.encodeTime = registry.timer(name("encodeTime"));
+        this.requestTime = registry.timer(name("requestTime"));
+        this.requestFailures = registry.meter(name("requestFailures"));
+        gauge("requestsInFlight", requestsInFlight::get);
+    }
+
+    /**
+     * Registers a gauge, replacing one of the same name left by an earlier instance of the output.
+     */
+    public void gauge(String name, Gauge<?> gauge) {
+        registry.remove(name(name));
+        registry.register(name(name), gauge);
+    }
+
+    /**
+     * Messages that went into the buffers.
+     */
+    public void enqueued(int messages) {
+        enqueued.mark(messages);
+    }
+
+    /**
+     * Messages the output discarded because the buffer was full or the output stopped.
+     */
+    public void dropped() {
+        dropped.mark();
+    }
+
+    public Timer.Context startEncode() {
+        return encodeTime.time();
+    }
+
+    /**
+     * Records an encoded package.
+     *
+     * @param uncompressedBytes size of the JSON body before compression
+     * @param compressedBytes size of the gzipped request body
+     */
+    public void encoded(int messages, long uncompressedBytes, long compressedBytes) {
+        packageMessages.update(messages);
+        packageBytes.update(compressedBytes);
+        if (compressedBytes > 0) {
+            compressionRatio.update(uncompressedBytes * 100 / compressedBytes);
+        }
+    }
+
+    public Timer.Context startRequest() {
+        requestsInFlight.incrementAndGet();
+        return requestTime.time();
+    }
+
+    /**
+     * Ends a request the intake answered.
+     */
+    public void requestCompleted(Timer.Context request, int statusCode) {
+        request.stop();
+        requestsInFlight.decrementAndGet();
+        statusCodes.computeIfAbsent(statusCode,
+                code -> registry.meter(name("status", Integer.toString(code)))).mark();
+    }
+
+    /**
+     * Ends a request that got no answer.
+     */
+    public void requestFailed(Timer.Context request) {
+        request.stop();
+        requestsInFlight.decrementAndGet();
+        requestFailures.mark();
+    }
+
+    /**
+     * Unregisters all metrics of the output.
+     */
+    public void remove() {
+        registry.removeMatching((name, metric) -> name.startsWith(prefix + "."));
+    }
+
+    private String name(String... names) {
+        return MetricRegistry.name(prefix, names);
+    }
+}
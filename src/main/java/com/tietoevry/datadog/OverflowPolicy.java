@@ -0,0 +1,43 @@
+package com.tietoevry.datadog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What {@link DataDog#write(org.graylog2.plugin.Message)} does when the buffer is full.
+ */
+public enum OverflowPolicy {
+    BLOCK("block", "Block, then drop the new message after the block timeout"),
+    DROP_NEWEST("drop-newest", "Drop the new message"),
+    DROP_OLDEST("drop-oldest", "Drop the oldest buffered messages"),
+    SPILL("spill-to-disk", "Write the new message to the disk spool (blocks if no spool directory is set)");
+
+    private final String configName;
+    private final String description;
+
+    OverflowPolicy(String configName, String description) {
+        this.configName = configName;
+        this.description = description;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    public static OverflowPolicy fromConfig(String name) {
+        for (OverflowPolicy policy : values()) {
+            if (policy.configName.equals(name)) {
+                return policy;
+            }
+        }
+        return BLOCK;
+    }
+
+    public static Map<String, String> choices() {
+        Map<String, String> choices = new LinkedHashMap<>();
+        for (OverflowPolicy policy : values()) {
+            choices.put(policy.configName, policy.description);
+        }
+        return choices;
+    }
+}
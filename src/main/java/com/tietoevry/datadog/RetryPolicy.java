@@ -0,0 +1,66 @@
+package com.tietoevry.datadog;
+
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Classifies intake responses and computes how long to wait before the next attempt: capped exponential
+ * backoff with full jitter, but never less than the intake asked for with {@code Retry-After}.
+ */
+public class RetryPolicy {
+    public enum Outcome {
+        SUCCESS, RETRY, PERMANENT_FAILURE
+    }
+
+    private final int maxRetries;
+    private final long baseBackoffMs;
+    private final long maxBackoffMs;
+
+    public RetryPolicy(int maxRetries, long baseBackoffMs, long maxBackoffMs) {
+        this.maxRetries = maxRetries;
+        this.baseBackoffMs = Math.max(1, baseBackoffMs);
+        this.maxBackoffMs = Math.max(this.baseBackoffMs, maxBackoffMs);
+    }
+
+    /**
+     * Timeouts, throttling and server errors are worth another attempt; any other client error
+     * (bad payload, bad API key, payload too large) will fail the same way again.
+     */
+    public Outcome classify(int statusCode) {
+        if (statusCode >= 200 && statusCode < 300) {
+            return Outcome.SUCCESS;
+        }
+        if (statusCode == 408 || statusCode == 429 || statusCode >= 500) {
+            return Outcome.RETRY;
+        }
+        return Outcome.PERMANENT_FAILURE;
+    }
+
+    public boolean canRetry(int attempt) {
+        return attempt <= maxRetries;
+    }
+
+    /**
+     * @param attempt     number of attempts already made, starting at 1
+     * @param retryAfter  {@code Retry-After} header value in seconds or as an HTTP date, or null
+     */
+    public long backoffMs(int attempt, String retryAfter) {
+        long ceiling = baseBackoffMs << Math.min(attempt - 1, 30);
+        long backoff = ThreadLocalRandom.current().nextLong(Math.min(ceiling, maxBackoffMs) + 1);
+        return Math.max(backoff, retryAfterMs(retryAfter));
+    }
+
+    static long retryAfterMs(String retryAfter) {
+        if (retryAfter == null || retryAfter.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(retryAfter);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
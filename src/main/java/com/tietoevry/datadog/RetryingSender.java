@@ -0,0 +1,441 @@
+package com.tietoevry.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Sends gzipped batches through the {@link Transport} and retries the ones that failed for a temporary
+ * reason. The caller's {@code done} runs after the first attempt, with what that attempt says about the
+ * intake's load, so a batch waiting for its retry does not hold a connection permit and fresh batches
+ * keep flowing. Batches waiting for a retry are bounded
+ * by their total body size; a batch that does not fit is dropped. Once a batch is delivered, dropped or
+ * stored, its body is released so the buffer can be reused.
+ *
+ * While the {@link CircuitBreaker} is open, batches are not sent but parked in a bounded holding buffer.
+ * A parked batch probes the intake once the open interval has passed. While the breaker is closed, every
+ * finished request sends one parked batch from a retry thread, so the backlog drains at the pace the
+ * intake answers.
+ *
+ * With a {@link FailedBatchStore}, batches that run out of retries or buffer room, and those still waiting
+ * when the output stops, are written to disk instead of being dropped. Writes from transport callbacks go
+ * through the store's writer thread.
+ */
+public class RetryingSender implements Closeable {
+    private final Logger log = LoggerFactory.getLogger(RetryingSender.class);
+    private final Transport transport;
+    private final RetryPolicy policy;
+    private final CircuitBreaker breaker;
+    private final long maxRetryBytes;
+    private final long maxHeldBytes;
+    private final AtomicLong retryBytes = new AtomicLong();
+    private final AtomicLong retryMessages = new AtomicLong();
+    private final AtomicLong heldBytes = new AtomicLong();
+    private final AtomicLong heldMessages = new AtomicLong();
+    private final Deque<Attempt> held = new ArrayDeque<>();
+    private final Set<Attempt> retrying = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    private final FailedBatchStore failedBatches;
+
+    /**
+     * @param failedBatches where to keep batches that cannot be delivered, or null to drop them
+     */
+    public RetryingSender(Transport transport, RetryPolicy policy, CircuitBreaker breaker, long maxRetryBytes,
+                          long maxHeldBytes, int retryThreads, FailedBatchStore failedBatches) {
+        this.transport = transport;
+        this.failedBatches = failedBatches;
+        this.policy = policy;
+        this.breaker = breaker;
+        this.maxRetryBytes = maxRetryBytes;
+        this.maxHeldBytes = maxHeldBytes;
+        this.scheduler = Executors.newScheduledThreadPool(retryThreads, runnable -> {
+            Thread thread = new Thread(runnable, "datadog-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param query encoded query parameters for the intake URL, or null
+     */
+    public void send(GzipBody body, String query, int messages, Consumer<ConcurrencyLimiter.Result> done) {
+        attempt(new Attempt(body, query, messages, 1, false, done));
+    }
+
+    /**
+     * Sends a batch exactly once, without retries or parking, and reports whether the intake took it.
+     * A batch the intake rejects permanently counts as taken, so it does not block the ones after it.
+     */
+    public void sendOnce(GzipBody body, int messages, Consumer<Boolean> delivered) {
+        sendOnce(callback -> transport.send(body.getBytes(), body.getLength(), null, callback), messages,
+                result -> {
+                    body.release();
+                    delivered.accept(result);
+                });
+    }
+
+    /**
+     * Like {@link #sendOnce(GzipBody, int, Consumer)}, but streams a body stored on disk.
+     */
+    public void sendOnce(File gzippedBody, String query, int messages, Consumer<Boolean> delivered) {
+        sendOnce(callback -> transport.send(gzippedBody, query, callback), messages, delivered);
+    }
+
+    private void sendOnce(Consumer<Transport.Callback> request, int messages, Consumer<Boolean> delivered) {
+        if (!breaker.tryAcquire()) {
+            delivered.accept(false);
+            return;
+        }
+        Transport.Callback callback = new Transport.Callback() {
+            @Override
+            public void completed(int statusCode, String retryAfter) {
+                switch (policy.classify(statusCode)) {
+                    case SUCCESS:
+                        recordSuccess();
+                        delivered.accept(true);
+                        break;
+                    case RETRY:
+                        if (statusCode == 429) {
+                            recordSuccess();
+                        } else {
+                            recordFailure();
+                        }
+                        delivered.accept(false);
+                        break;
+                    default:
+                        recordSuccess();
+                        log.error("Error - wrong response - status code: {}, dropping {} messages", statusCode, messages);
+                        delivered.accept(true);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                log.debug("Executing post request failed", e);
+                recordFailure();
+                delivered.accept(false);
+            }
+        };
+        try {
+            request.accept(callback);
+        } catch (RuntimeException e) {
+            // report it, or a probe that threw would keep the breaker half-open for good
+            callback.failed(e);
+        }
+    }
+
+    /**
+     * Whether requests are going through, i.e. the circuit breaker is closed.
+     */
+    public boolean isAvailable() {
+        return breaker.getState() == CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Whether a request sent now would go out: the breaker is closed, or it is open and the open interval
+     * has passed, so the request probes the intake. Senders that wait for the intake to come back, like the
+     * spool drainer, check this rather than {@link #isAvailable()}, or nobody would probe while the stream
+     * is quiet.
+     */
+    public boolean canSend() {
+        return isAvailable() || breaker.isProbeDue();
+    }
+
+    /**
+     * Messages of batches that are waiting for a retry or for the circuit breaker to close.
+     */
+    public long getPendingMessages() {
+        return retryMessages.get() + heldMessages.get();
+    }
+
+    private void attempt(Attempt attempt) {
+        if (!breaker.tryAcquire()) {
+            hold(attempt);
+            return;
+        }
+        Transport.Callback callback = new Transport.Callback() {
+            @Override
+            public void completed(int statusCode, String retryAfter) {
+                switch (policy.classify(statusCode)) {
+                    case SUCCESS:
+                        recordSuccess();
+                        finish(attempt, ConcurrencyLimiter.Result.SUCCESS);
+                        break;
+                    case RETRY:
+                        if (statusCode == 429) {
+                            recordSuccess();
+                        } else {
+                            recordFailure();
+                        }
+                        retry(attempt, retryAfter, "status code " + statusCode);
+                        break;
+                    default:
+                        recordSuccess();
+                        log.error("Error - wrong response - status code: {}, dropping {} messages",
+                                statusCode, attempt.messages);
+                        finish(attempt, ConcurrencyLimiter.Result.SUCCESS);
+                }
+                releaseHeld();
+            }
+
+            @Override
+            public void failed(Exception e) {
+                log.debug("Executing post request failed", e);
+                recordFailure();
+                retry(attempt, null, e.toString());
+            }
+        };
+        try {
+            transport.send(attempt.body.getBytes(), attempt.body.getLength(), attempt.query, callback);
+        } catch (RuntimeException e) {
+            // report it, or a probe that threw would keep the breaker half-open for good
+            callback.failed(e);
+        }
+    }
+
+    private void retry(Attempt attempt, String retryAfter, String reason) {
+        boolean firstRetry = attempt.number == 1;
+        if (!policy.canRetry(attempt.number) || (firstRetry && !reserve(retryBytes, retryMessages, maxRetryBytes, attempt))) {
+            finishFailed(attempt, ConcurrencyLimiter.Result.OVERLOAD, stored -> {
+                if (stored) {
+                    log.warn("Sending package failed ({}) after {} attempts, stored {} messages for replay",
+                            reason, attempt.number, attempt.messages);
+                } else {
+                    log.error("Sending package failed ({}) after {} attempts, dropping {} messages",
+                            reason, attempt.number, attempt.messages);
+                }
+            });
+            return;
+        }
+        Consumer<ConcurrencyLimiter.Result> retryDone = firstRetry
+                ? result -> release(retryBytes, retryMessages, attempt)
+                : attempt.done;
+        Attempt next = new Attempt(attempt.body, attempt.query, attempt.messages, attempt.number + 1, false,
+                retryDone);
+        long delay = policy.backoffMs(attempt.number, retryAfter);
+        log.warn("Sending package failed ({}), retrying in {} ms", reason, delay);
+        retrying.add(next);
+        boolean scheduled = schedule(() -> {
+            if (retrying.remove(next)) {
+                attempt(next);
+            }
+        }, delay);
+        if (!scheduled && retrying.remove(next)) {
+            finishFailed(next, ConcurrencyLimiter.Result.OVERLOAD, stored -> {
+                if (!stored) {
+                    log.error("Output stopped, dropping {} messages waiting for a retry", attempt.messages);
+                }
+            });
+        }
+        if (firstRetry) {
+            attempt.done.accept(ConcurrencyLimiter.Result.OVERLOAD);
+        }
+    }
+
+    /**
+     * Parks a batch while the breaker is open. A first attempt takes room in the holding buffer and gives
+     * its connection permit back; a retry already has room in the retry buffer.
+     */
+    private void hold(Attempt attempt) {
+        Attempt parked = attempt;
+        if (attempt.number == 1 && !attempt.held) {
+            if (!reserve(heldBytes, heldMessages, maxHeldBytes, attempt)) {
+                finishFailed(attempt, ConcurrencyLimiter.Result.IGNORE, stored -> {
+                    if (stored) {
+                        log.warn("Intake unavailable and holding buffer full, stored {} messages for replay",
+                                attempt.messages);
+                    } else {
+                        log.error("Intake unavailable and holding buffer full, dropping {} messages",
+                                attempt.messages);
+                    }
+                });
+                return;
+            }
+            parked = new Attempt(attempt.body, attempt.query, attempt.messages, attempt.number, true,
+                    result -> release(heldBytes, heldMessages, attempt));
+            attempt.done.accept(ConcurrencyLimiter.Result.IGNORE);
+        }
+        synchronized (held) {
+            if (attempt.held) {
+                held.addFirst(parked);
+            } else {
+                held.addLast(parked);
+            }
+        }
+    }
+
+    private void recordSuccess() {
+        if (breaker.onSuccess()) {
+            log.info("Intake available again, sending held packages");
+            // the probe may have come from the spool or the replay, which do not release held batches
+            releaseHeld();
+        }
+    }
+
+    private void recordFailure() {
+        if (breaker.onFailure()) {
+            log.warn("Intake unavailable, holding packages for {} ms", breaker.getOpenMs());
+            schedule(this::releaseNext, breaker.getOpenMs());
+        }
+    }
+
+    /**
+     * Sends the oldest held batch from a scheduler thread. Calling {@link #releaseNext()} right from the
+     * completion would recurse through a blocking transport, one stack frame set per held batch, and
+     * hold the transmit worker that sent the finished request.
+     */
+    private void releaseHeld() {
+        synchronized (held) {
+            if (held.isEmpty()) {
+                return;
+            }
+        }
+        schedule(this::releaseNext, 0);
+    }
+
+    /**
+     * Sends the oldest held batch. Called when a request has finished while the breaker is closed and,
+     * after the open interval, to probe the intake. While the breaker is still open the batch is parked
+     * again.
+     */
+    private void releaseNext() {
+        CircuitBreaker.State state = breaker.getState();
+        if (state == CircuitBreaker.State.HALF_OPEN || (state == CircuitBreaker.State.OPEN && !breaker.isProbeDue())) {
+            return;
+        }
+        Attempt next;
+        synchronized (held) {
+            next = held.pollFirst();
+        }
+        if (next != null) {
+            attempt(next);
+        }
+    }
+
+    /**
+     * Ends the life of a batch: it was delivered, dropped or stored.
+     */
+    private static void finish(Attempt attempt, ConcurrencyLimiter.Result result) {
+        attempt.done.accept(result);
+        attempt.body.release();
+    }
+
+    /**
+     * Ends the life of a batch that was not delivered. Its result goes to {@code done} right away; the body
+     * is written to the failed batch store from the store's writer thread, as this may run on an I/O thread
+     * of the transport, and released once {@code stored} has been told whether that worked.
+     */
+    private void finishFailed(Attempt attempt, ConcurrencyLimiter.Result result, Consumer<Boolean> stored) {
+        attempt.done.accept(result);
+        if (failedBatches == null) {
+            stored.accept(false);
+            attempt.body.release();
+            return;
+        }
+        failedBatches.storeLater(attempt.body, attempt.query, attempt.messages, written -> {
+            try {
+                stored.accept(written);
+            } finally {
+                attempt.body.release();
+            }
+        });
+    }
+
+    private boolean store(Attempt attempt) {
+        return failedBatches != null && failedBatches.store(attempt.body, attempt.query, attempt.messages);
+    }
+
+    private boolean schedule(Runnable task, long delayMs) {
+        try {
+            // close() drops tasks that have not run yet with shutdownNow, so the future is not needed
+            ScheduledFuture<?> unused = scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static boolean reserve(AtomicLong bytes, AtomicLong messages, long maxBytes, Attempt attempt) {
+        while (true) {
+            long current = bytes.get();
+            if (current + attempt.body.getLength() > maxBytes) {
+                return false;
+            }
+            if (bytes.compareAndSet(current, current + attempt.body.getLength())) {
+                messages.addAndGet(attempt.messages);
+                return true;
+            }
+        }
+    }
+
+    private static void release(AtomicLong bytes, AtomicLong messages, Attempt attempt) {
+        bytes.addAndGet(-attempt.body.getLength());
+        messages.addAndGet(-attempt.messages);
+    }
+
+    /**
+     * Stops retrying and, with a failed batch store, writes the batches still waiting for a retry or for
+     * the circuit breaker to close to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        List<Attempt> pending = new ArrayList<>();
+        // a retry that is running right now may remove its attempt first; whoever removes it owns it
+        for (Attempt attempt : new ArrayList<>(retrying)) {
+            if (retrying.remove(attempt)) {
+                pending.add(attempt);
+            }
+        }
+        synchronized (held) {
+            pending.addAll(held);
+            held.clear();
+        }
+        int stored = 0;
+        for (Attempt attempt : pending) {
+            if (store(attempt)) {
+                stored += attempt.messages;
+            }
+            finish(attempt, ConcurrencyLimiter.Result.IGNORE);
+        }
+        if (stored > 0) {
+            log.info("Stored {} pending messages for replay", stored);
+        }
+        transport.close();
+    }
+
+    private static class Attempt {
+        private final GzipBody body;
+        private final String query;
+        private final int messages;
+        private final int number;
+        private final boolean held;
+        private final Consumer<ConcurrencyLimiter.Result> done;
+
+        private Attempt(GzipBody body, String query, int messages, int number, boolean held,
+                        Consumer<ConcurrencyLimiter.Result> done) {
+            this.body = body;
+            this.query = query;
+            this.messages = messages;
+            this.number = number;
+            this.held = held;
+            this.done = done;
+        }
+    }
+}
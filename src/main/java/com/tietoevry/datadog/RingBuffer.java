@@ -0,0 +1,257 @@
+package com.tietoevry.datadog;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Preallocated, lock-free bounded buffer between Graylog's output threads and the {@link SendingThread}.
+ *
+ * Producers claim a slot by advancing the tail sequence with a CAS and publish it by writing the slot
+ * sequence, so concurrent writers never take a lock. The consumer releases a slot the same way, which
+ * makes the slot reusable for the producer one lap ahead. Waiting on an empty or full buffer is left
+ * to a {@link WaitStrategy}.
+ *
+ * Besides the slot count the buffer is bounded by the total weight of its elements (the estimated
+ * message bytes). The weight bound is checked before a slot is claimed, so concurrent producers may
+ * overshoot it by a few elements. An empty buffer always accepts an element.
+ *
+ * Each slot also keeps the {@link System#nanoTime()} its element was offered at, so the consumer can tell
+ * how long the element waited in the buffer.
+ */
+public class RingBuffer<E> {
+    private final int mask;
+    private final Object[] elements;
+    private final long[] weights;
+    private final long[] offeredNanos;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong weight = new AtomicLong();
+    private final long maxWeight;
+    private final WaitStrategy notEmpty;
+    private final WaitStrategy notFull;
+    private final BooleanSupplier hasMessages = this::hasMessages;
+
+    public RingBuffer(int capacity, long maxWeight, String waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.maxWeight = maxWeight;
+        this.elements = new Object[size];
+        this.weights = new long[size];
+        this.offeredNanos = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.notEmpty = WaitStrategy.create(waitStrategy);
+        this.notFull = WaitStrategy.create(waitStrategy);
+    }
+
+    /**
+     * Receives drained elements together with the weight and the time they were offered with.
+     */
+    public interface Drain<E> {
+        void accept(E element, long weight, long offeredNanos);
+    }
+
+    /**
+     * Adds the element if there is space, without waiting.
+     */
+    public boolean offer(E element, long elementWeight) {
+        long current = weight.get();
+        if (current > 0 && current + elementWeight > maxWeight) {
+            return false;
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    weight.addAndGet(elementWeight);
+                    elements[index] = element;
+                    weights[index] = elementWeight;
+                    offeredNanos[index] = System.nanoTime();
+                    sequences.set(index, position + 1);
+                    notEmpty.signal();
+                    return true;
+                }
+            } else if (available < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds as many elements of the list, starting at {@code from}, as fit right now. All accepted elements
+     * are claimed with a single CAS and the consumer is signalled once.
+     *
+     * @return the number of elements added, 0 if the buffer is full
+     */
+    public int offer(List<? extends E> batch, long[] batchWeights, int from) {
+        int wanted = fitting(batchWeights, from, batch.size());
+        if (wanted == 0) {
+            return 0;
+        }
+        while (true) {
+            long position = tail.get();
+            int free = 0;
+            while (free < wanted && sequences.get((int) (position + free) & mask) == position + free) {
+                free++;
+            }
+            if (free == 0) {
+                if (sequences.get((int) position & mask) - position < 0) {
+                    return 0;
+                }
+                continue;
+            }
+            if (tail.compareAndSet(position, position + free)) {
+                long claimedWeight = 0;
+                for (int i = 0; i < free; i++) {
+                    claimedWeight += batchWeights[from + i];
+                }
+                weight.addAndGet(claimedWeight);
+                long now = System.nanoTime();
+                for (int i = 0; i < free; i++) {
+                    int index = (int) (position + i) & mask;
+                    elements[index] = batch.get(from + i);
+                    weights[index] = batchWeights[from + i];
+                    offeredNanos[index] = now;
+                    sequences.set(index, position + i + 1);
+                }
+                notEmpty.signal();
+                return free;
+            }
+        }
+    }
+
+    private int fitting(long[] batchWeights, int from, int to) {
+        long total = weight.get();
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            total += batchWeights[i];
+            if (total > maxWeight && (count > 0 || total > batchWeights[i])) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Adds the element, waiting up to the given time for space to free up.
+     */
+    public boolean offer(E element, long elementWeight, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        BooleanSupplier hasSpace = () -> hasSpace(elementWeight);
+        while (!offer(element, elementWeight)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            notFull.await(hasSpace, deadline);
+        }
+        return true;
+    }
+
+    public E poll() {
+        E element = take(null);
+        if (element != null) {
+            notFull.signal();
+        }
+        return element;
+    }
+
+    /**
+     * Waits up to the given time for an element to be published, without taking it.
+     */
+    public boolean awaitMessages(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!hasMessages()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            notEmpty.await(hasMessages, deadline);
+        }
+        return true;
+    }
+
+    public int drainTo(Drain<? super E> target, int maxElements) {
+        int drained = 0;
+        while (drained < maxElements && take(target) != null) {
+            drained++;
+        }
+        if (drained > 0) {
+            notFull.signal();
+        }
+        return drained;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private E take(Drain<? super E> target) {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long published = sequences.get(index) - (position + 1);
+            if (published == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[index];
+                    long elementWeight = weights[index];
+                    long offered = offeredNanos[index];
+                    elements[index] = null;
+                    sequences.set(index, position + mask + 1);
+                    weight.addAndGet(-elementWeight);
+                    if (target != null) {
+                        target.accept(element, elementWeight, offered);
+                    }
+                    return element;
+                }
+            } else if (published < 0) {
+                return null;
+            }
+        }
+    }
+
+    private boolean hasMessages() {
+        long position = head.get();
+        return sequences.get((int) position & mask) == position + 1;
+    }
+
+    /**
+     * Whether an element of the given weight fits by both slots and weight, as {@link #offer(Object, long)}
+     * checks it. A buffer full by weight must not count as having space, or waiting writers would spin.
+     */
+    private boolean hasSpace(long elementWeight) {
+        long current = weight.get();
+        if (current > 0 && current + elementWeight > maxWeight) {
+            return false;
+        }
+        long position = tail.get();
+        return sequences.get((int) position & mask) == position;
+    }
+}
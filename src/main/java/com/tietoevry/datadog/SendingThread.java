@@ -4,61 +4,249 @@ import org.graylog2.plugin.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
+/**
+ * Runs the sending pipeline of a shard in three stages: this thread drains the queue into a
+ * {@link BatchAccumulator}, the encode stage turns closed batches into compressed request bodies and the
+ * transmit stage sends them. The stages hand batches over through small bounded queues, so the next
+ * batch is encoded while the previous one is on the wire, and a full queue holds back the stage before.
+ *
+ * A connection permit is taken per request from a {@link ConcurrencyLimiter} and given back once the
+ * request has finished, which with the asynchronous transport is after the transmit worker has already
+ * moved on. The limiter adapts the number of permits to how the intake copes, and the
+ * {@link BatchSizeController} adapts the number of messages per batch to the acknowledged throughput.
+ */
 public class SendingThread extends Thread {
-    private final BlockingQueue<Message> queue;
+    /** How long an idle thread waits for messages before it checks whether it should stop. */
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RingBuffer<Message> queue;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final Consumer<List> sendMessage;
-    private final ExecutorService executorService;
-    private final Semaphore semaphore;
+    private final BatchEncoder encoder;
+    private final BatchSender sender;
+    private final Stage<Batch> encodeStage;
+    private final Stage<EncodedBatch> transmitStage;
+    private final ConcurrencyLimiter limiter;
+    private final BatchSizeController batchSize;
+    private final StageTracer tracer;
+    private final BatchAccumulator accumulator;
+    private final RingBuffer.Drain<Message> drain;
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private volatile long deadlineNanos;
     private final Logger log = LoggerFactory.getLogger(SendingThread.class);
 
 
-    public SendingThread(int connections, BlockingQueue<Message> queue, Consumer<List> sendMessages) {
+    public SendingThread(int encodeWorkers, int transmitWorkers, int stageQueueSize, ConcurrencyLimiter limiter,
+                         BatchSizeController batchSize, StageTracer tracer, long maxPackageBytes, long lingerMs,
+                         RingBuffer<Message> queue, BatchEncoder encoder, BatchSender sender) {
         this.queue = queue;
-        this.sendMessage = sendMessages;
+        this.encoder = encoder;
+        this.sender = sender;
+        this.batchSize = batchSize;
+        this.tracer = tracer;
+        this.accumulator = new BatchAccumulator(batchSize.getBatchSize(), maxPackageBytes,
+                TimeUnit.MILLISECONDS.toNanos(lingerMs), this::dispatch);
+        this.drain = (message, size, offered) -> accumulator.add(message, size, offered, System.nanoTime());
+
+        this.encodeStage = new Stage<>("encode", encodeWorkers, stageQueueSize, this::encode);
+        this.transmitStage = new Stage<>("transmit", transmitWorkers, stageQueueSize, this::transmit);
+        this.limiter = limiter;
+    }
+
+    public RingBuffer<Message> getQueue() {
+        return queue;
+    }
+
+    /**
+     * Batches waiting to be encoded.
+     */
+    public int getEncodeQueueDepth() {
+        return encodeStage.depth();
+    }
+
+    /**
+     * Encoded batches waiting to be sent.
+     */
+    public int getTransmitQueueDepth() {
+        return transmitStage.depth();
+    }
+
+    /**
+     * Whether messages are waiting in the buffer or batches in a stage queue.
+     */
+    private boolean hasBacklog() {
+        return queue.size() > 0 || encodeStage.depth() > 0 || transmitStage.depth() > 0;
+    }
 
-        this.executorService = Executors.newFixedThreadPool(connections);
-        this.semaphore = new Semaphore(connections);
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
     }
 
-    public void stopThread() {
+    public BatchSizeController getBatchSizeController() {
+        return batchSize;
+    }
+
+    /**
+     * Stops draining; the thread then sends what is left in the queue until the deadline.
+     */
+    public void shutdown(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
         isRunning.set(false);
-        executorService.shutdown();
     }
 
-    public synchronized void notifyThread() {
-        this.notify();
+    /**
+     * Waits for the remaining messages and in-flight batches until the shutdown deadline.
+     * Whatever is not sent by then is abandoned.
+     */
+    public void awaitShutdown() throws InterruptedException {
+        join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
+        if (isAlive()) {
+            // past the deadline the remaining dispatches give up at once, so the thread ends quickly
+            interrupt();
+            join();
+        }
+        encodeStage.shutdown();
+        encodeStage.awaitTermination(deadlineNanos);
+        transmitStage.shutdown();
+        for (EncodedBatch batch : transmitStage.awaitTermination(deadlineNanos)) {
+            batch.getBody().release();
+        }
+        limiter.awaitIdle(deadlineNanos);
+    }
+
+    /**
+     * Messages the intake took while shutting down, including batches that were in flight when the
+     * shutdown began.
+     */
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    /**
+     * Messages left unsent when the shutdown deadline passed, including those still in the buffer or
+     * in the batch being filled. Call after {@link #awaitShutdown()}.
+     */
+    public long getAbandoned() {
+        return abandoned.get() + inFlight.get() + queue.size() + accumulator.size();
     }
 
     @Override
     public void run() {
+        encodeStage.start(getName());
+        transmitStage.start(getName());
         while (isRunning.get()) {
-            synchronized (this) {
-                try {
-                    if (queue.size() > 0) {
-                        ArrayList<Message> data = new ArrayList<>();
-                        queue.drainTo(data);
-
-                        semaphore.acquire();
-                        executorService.execute(() -> {
-                            sendMessage.accept(data);
-                            semaphore.release();
-                        });
-                    }
-                    this.wait();
-                } catch (InterruptedException e) {
-                    log.error("Interrupted sending thread", e);
+            try {
+                // an empty batch has no deadline, so an idle thread waits whatever the linger time is
+                long wait = Math.min(accumulator.nanosUntilDeadline(System.nanoTime()), IDLE_WAIT_NANOS);
+                if (wait > 0 && queue.size() == 0) {
+                    queue.awaitMessages(wait, TimeUnit.NANOSECONDS);
+                }
+                accumulator.setMaxMessages(batchSize.getBatchSize());
+                queue.drainTo(drain, accumulator.getMaxMessages());
+                accumulator.flushIfExpired(System.nanoTime());
+            } catch (InterruptedException e) {
+                log.error("Interrupted sending thread", e);
+            }
+        }
+        queue.drainTo(drain, Integer.MAX_VALUE);
+        accumulator.flush();
+    }
+
+    private void dispatch(Batch batch) {
+        inFlight.addAndGet(batch.size());
+        try {
+            if (isRunning.get()) {
+                encodeStage.put(batch);
+                return;
+            }
+            if (encodeStage.put(batch, deadlineNanos)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted sending thread, dropping {} messages", batch.size(), e);
+        }
+        abandon(batch.size());
+    }
+
+    private void encode(Batch batch) throws InterruptedException {
+        EncodedBatch encoded = encoder.encode(batch);
+        if (encoded == null) {
+            complete(batch.size(), false);
+            return;
+        }
+        try {
+            if (isRunning.get()) {
+                transmitStage.put(encoded);
+                return;
+            }
+            if (transmitStage.put(encoded, deadlineNanos)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            abandon(encoded);
+            throw e;
+        }
+        abandon(encoded);
+    }
+
+    private void transmit(EncodedBatch batch) throws InterruptedException {
+        long start;
+        try {
+            start = isRunning.get() ? limiter.acquire() : limiter.tryAcquire(deadlineNanos);
+            if (start < 0) {
+                abandon(batch);
+                return;
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted transmit worker, dropping {} messages", batch.size(), e);
+            abandon(batch);
+            throw e;
+        }
+        AtomicBoolean completed = new AtomicBoolean();
+        int bytes = batch.getBody().getLength();
+        Consumer<ConcurrencyLimiter.Result> done = result -> {
+            if (completed.compareAndSet(false, true)) {
+                complete(batch.size(), result == ConcurrencyLimiter.Result.SUCCESS);
+                limiter.release(start, bytes, result);
+                if (result == ConcurrencyLimiter.Result.SUCCESS) {
+                    long now = System.nanoTime();
+                    batchSize.record(batch.getEstimatedBytes(), now - batch.getEnqueuedNanos(), hasBacklog());
+                    tracer.record(batch, start, now);
                 }
             }
+        };
+        try {
+            sender.send(batch, done);
+        } catch (RuntimeException e) {
+            log.error("Sending package failed", e);
+            done.accept(ConcurrencyLimiter.Result.IGNORE);
         }
     }
+
+    /**
+     * Hands a batch off. Only a batch the intake took counts as flushed; one that waits for a retry or
+     * for the breaker is counted by the sender's pending messages instead.
+     */
+    private void complete(int messages, boolean delivered) {
+        inFlight.addAndGet(-messages);
+        if (delivered && !isRunning.get()) {
+            flushed.addAndGet(messages);
+        }
+    }
+
+    private void abandon(EncodedBatch batch) {
+        batch.getBody().release();
+        abandon(batch.size());
+    }
+
+    private void abandon(int messages) {
+        inFlight.addAndGet(-messages);
+        abandoned.addAndGet(messages);
+    }
 }
@@ -0,0 +1,103 @@
+package com.tietoevry.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends the entries of the {@link DiskSpool} in order while the intake is available. A batch is
+ * acknowledged in the spool only after the intake has accepted it, so entries are sent at least once.
+ * Batches are compressed with one {@link GzipCompressor} into buffers of the output's {@link BufferPool}.
+ * While the circuit breaker is open, the drainer sends the next batch as a probe once the open interval
+ * has passed, so the spool drains again after an outage even when no live traffic comes along.
+ */
+public class SpoolDrainer extends Thread {
+    private static final long IDLE_MS = 1000;
+
+    private final DiskSpool spool;
+    private final RetryingSender sender;
+    private final BufferPool bufferPool;
+    private final int maxRecords;
+    private final long maxBytes;
+    private final long retryDelayMs;
+    private final AtomicBoolean isRunning = new AtomicBoolean(true);
+    private final Logger log = LoggerFactory.getLogger(SpoolDrainer.class);
+
+    public SpoolDrainer(DiskSpool spool, RetryingSender sender, BufferPool bufferPool, int maxRecords,
+                        long maxBytes, long retryDelayMs) {
+        this.spool = spool;
+        this.sender = sender;
+        this.bufferPool = bufferPool;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.retryDelayMs = retryDelayMs;
+        setDaemon(true);
+    }
+
+    public void stopThread() {
+        isRunning.set(false);
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        DiskSpool.Position[] end = new DiskSpool.Position[1];
+        GzipCompressor gzip = new GzipCompressor(bufferPool);
+        try {
+            drain(gzip, end);
+        } finally {
+            gzip.end();
+        }
+    }
+
+    private void drain(GzipCompressor gzip, DiskSpool.Position[] end) {
+        while (isRunning.get()) {
+            try {
+                if (spool.isEmpty() || !sender.canSend()) {
+                    TimeUnit.MILLISECONDS.sleep(IDLE_MS);
+                    continue;
+                }
+                List<byte[]> records = spool.read(maxRecords, maxBytes, end);
+                if (records.isEmpty()) {
+                    if (spool.isAhead(end[0])) {
+                        spool.acknowledge(end[0]);
+                    }
+                    TimeUnit.MILLISECONDS.sleep(IDLE_MS);
+                    continue;
+                }
+                CompletableFuture<Boolean> delivered = new CompletableFuture<>();
+                sender.sendOnce(compress(gzip, records), records.size(), delivered::complete);
+                if (delivered.get()) {
+                    spool.acknowledge(end[0]);
+                } else {
+                    TimeUnit.MILLISECONDS.sleep(retryDelayMs);
+                }
+            } catch (InterruptedException e) {
+                if (isRunning.get()) {
+                    log.error("Interrupted spool drainer", e);
+                }
+            } catch (IOException | ExecutionException e) {
+                log.error("Draining the spool failed", e);
+            }
+        }
+    }
+
+    private static GzipBody compress(GzipCompressor gzip, List<byte[]> records) {
+        gzip.start();
+        gzip.write('[');
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                gzip.write(',');
+            }
+            gzip.write(records.get(i), 0, records.get(i).length);
+        }
+        gzip.write(']');
+        return gzip.finish();
+    }
+}
@@ -0,0 +1,114 @@
+package com.tietoevry.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One step of the sending pipeline: a bounded hand-off queue and the worker threads that take items
+ * from it. A full queue blocks the previous step, so a slow step holds back the ones before it instead
+ * of piling up work; its {@link #depth()} shows where the pipeline is waiting.
+ */
+public class Stage<T> {
+    private static final long POLL_MS = 100;
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final Handler<T> handler;
+    private final List<Thread> workers;
+    private volatile boolean running = true;
+    private final Logger log = LoggerFactory.getLogger(Stage.class);
+
+    @FunctionalInterface
+    public interface Handler<T> {
+        void handle(T item) throws InterruptedException;
+    }
+
+    public Stage(String name, int workers, int capacity, Handler<T> handler) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.handler = handler;
+        this.workers = new ArrayList<>(Math.max(1, workers));
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            this.workers.add(new Thread(this::work));
+        }
+    }
+
+    public void start(String threadName) {
+        for (int i = 0; i < workers.size(); i++) {
+            Thread worker = workers.get(i);
+            worker.setName(threadName + "-" + name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Waits for room in the queue until the deadline.
+     *
+     * @return false if the queue was still full at the deadline
+     */
+    public boolean put(T item, long deadlineNanos) throws InterruptedException {
+        return queue.offer(item, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Items waiting for a worker.
+     */
+    public int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Lets the workers finish once the queue is empty.
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * Waits for the workers until the deadline and interrupts the ones still busy.
+     *
+     * @return the items nobody took
+     */
+    public List<T> awaitTermination(long deadlineNanos) throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
+        }
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                worker.interrupt();
+            }
+        }
+        List<T> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        return remaining;
+    }
+
+    private void work() {
+        while (running || !queue.isEmpty()) {
+            try {
+                T item = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    handler.handle(item);
+                }
+            } catch (InterruptedException e) {
+                if (running) {
+                    log.error("Interrupted {} worker", name, e);
+                }
+                return;
+            } catch (RuntimeException e) {
+                log.error("{} worker failed", name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.tietoevry.datadog;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long delivered packages spent in each step from the first message being written to the
+ * output until the intake acknowledged the package. Every step has its own HdrHistogram {@link Recorder},
+ * which writers update without locking; once per interval the recorders are swapped for fresh ones, the
+ * percentiles of the finished interval are kept for {@link #getPercentile} and a summary is logged.
+ */
+public class StageTracer {
+    public enum Step {
+        /** From the first message being written until the sending thread took it from the buffer. */
+        QUEUE("queue"),
+        /** Filling the package until it was full or lingered long enough. */
+        BATCH("batch"),
+        /** Waiting for an encode worker and encoding. */
+        ENCODE("encode"),
+        /** Waiting for a transmit worker and a connection permit. */
+        PERMIT("permit"),
+        /** The request, until the intake answered. */
+        REQUEST("request"),
+        /** All of the above. */
+        TOTAL("total");
+
+        private final String name;
+
+        Step(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public enum Percentile {
+        P50("p50", 50),
+        P99("p99", 99),
+        P999("p999", 99.9);
+
+        private final String name;
+        private final double value;
+
+        Percentile(String name, double value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(StageTracer.class);
+    private final String output;
+    private final long intervalSeconds;
+    private final Recorder[] recorders = new Recorder[Step.values().length];
+    private final Histogram[] intervals = new Histogram[Step.values().length];
+    private final long[][] percentiles = new long[Step.values().length][Percentile.values().length];
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> summary;
+
+    /**
+     * @param intervalSeconds how often to take the percentiles and log them; 0 disables tracing
+     */
+    public StageTracer(String output, long intervalSeconds) {
+        this.output = output;
+        this.intervalSeconds = intervalSeconds;
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new Recorder(3);
+        }
+    }
+
+    public void start() {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "datadog-trace-" + output);
+            thread.setDaemon(true);
+            return thread;
+        });
+        summary = scheduler.scheduleAtFixedRate(this::summarize, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            summary.cancel(false);
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Records the steps of a package the intake has acknowledged.
+     *
+     * @param permitNanos when the connection permit was granted and the request started
+     */
+    public void record(EncodedBatch batch, long permitNanos, long acknowledgedNanos) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        record(Step.QUEUE, batch.getCreatedNanos() - batch.getEnqueuedNanos());
+        record(Step.BATCH, batch.getClosedNanos() - batch.getCreatedNanos());
+        record(Step.ENCODE, batch.getEncodedNanos() - batch.getClosedNanos());
+        record(Step.PERMIT, permitNanos - batch.getEncodedNanos());
+        record(Step.REQUEST, acknowledgedNanos - permitNanos);
+        record(Step.TOTAL, acknowledgedNanos - batch.getEnqueuedNanos());
+    }
+
+    /**
+     * A percentile of the last interval in microseconds.
+     */
+    public synchronized long getPercentile(Step step, Percentile percentile) {
+        return percentiles[step.ordinal()][percentile.ordinal()];
+    }
+
+    private void record(Step step, long nanos) {
+        recorders[step.ordinal()].recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    private synchronized void summarize() {
+        StringBuilder summary = new StringBuilder();
+        for (Step step : Step.values()) {
+            int i = step.ordinal();
+            intervals[i] = recorders[i].getIntervalHistogram(intervals[i]);
+            summary.append(i == 0 ? "" : ", ").append(step.getName());
+            for (Percentile percentile : Percentile.values()) {
+                int p = percentile.ordinal();
+                percentiles[i][p] = intervals[i].getValueAtPercentile(percentile.value);
+                summary.append(p == 0 ? " " : "/").append(String.format("%.1f", percentiles[i][p] / 1000.0));
+            }
+        }
+        long packages = intervals[Step.TOTAL.ordinal()].getTotalCount();
+        if (packages > 0) {
+            log.info("Output {}: {} packages acknowledged in the last {} s, latency in ms (p50/p99/p99.9): {}",
+                    output, packages, intervalSeconds, summary);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.tietoevry.datadog;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking transport; the calling thread waits for the response.
+ */
+public class SyncHttpTransport implements Transport {
+    private final CloseableHttpClient httpClient;
+    private final String url;
+    private final String apiKey;
+
+    public SyncHttpTransport(String url, String apiKey, ConnectionSettings connections) {
+        this.url = url;
+        this.apiKey = apiKey;
+
+        RequestConfig.Builder requestConfig = RequestConfig.custom();
+        requestConfig.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        requestConfig.setConnectionRequestTimeout(CONNECT_TIMEOUT_MS);
+        requestConfig.setSocketTimeout(SOCKET_TIMEOUT_MS);
+
+        PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
+        connManager.setMaxTotal(connections.getMaxTotal());
+        connManager.setDefaultMaxPerRoute(connections.getMaxPerRoute());
+        connManager.setValidateAfterInactivity(connections.getValidateAfterInactivityMs());
+        HttpClientBuilder clientBuilder = HttpClients.custom().setConnectionManager(connManager)
+                .setDefaultRequestConfig(requestConfig.build())
+                .setKeepAliveStrategy(connections.keepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(connections.getIdleTimeoutMs(), TimeUnit.MILLISECONDS);
+        httpClient = clientBuilder.build();
+    }
+
+    @Override
+    public void send(byte[] gzippedBody, int length, String query, Callback callback) {
+        execute(new ByteArrayEntity(gzippedBody, 0, length), query, callback);
+    }
+
+    @Override
+    public void send(File gzippedBody, String query, Callback callback) {
+        execute(new FileEntity(gzippedBody), query, callback);
+    }
+
+    private void execute(HttpEntity entity, String query, Callback callback) {
+        HttpPost httpPost = new HttpPost(Transport.withQuery(url, query));
+        httpPost.setHeader("Accept", "application/json");
+        httpPost.setHeader("Content-Type", "application/json");
+        httpPost.setHeader("Content-Encoding", "gzip");
+        httpPost.setHeader("DD-API-KEY", apiKey);
+        httpPost.setEntity(entity);
+
+        int statusCode;
+        Header retryAfter;
+        try (CloseableHttpResponse httpResponse = httpClient.execute(httpPost)) {
+            statusCode = httpResponse.getStatusLine().getStatusCode();
+            retryAfter = httpResponse.getFirstHeader("Retry-After");
+            // reading the body to the end hands the connection back to the pool instead of closing it
+            EntityUtils.consume(httpResponse.getEntity());
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        callback.completed(statusCode, retryAfter == null ? null : retryAfter.getValue());
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
@@ -0,0 +1,103 @@
+package com.tietoevry.datadog;
+
+import org.graylog2.plugin.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled {@code ddtags} template such as {@code env:prod,vdom:${vdom},type:${log_type:-unknown}}.
+ * {@code ${field}} is replaced by the value of the message field, or by nothing if the message does not
+ * have it; {@code ${field:-default}} falls back to the given default for missing and empty fields.
+ * Everything else is copied as is.
+ *
+ * The template is parsed once, into literal pieces and the fields between them. Rendering goes through a
+ * {@link Renderer}, which remembers the tags of recent field value combinations, so recurring
+ * combinations do not build a new string for every message.
+ */
+public class TagTemplate {
+    public static final String DEFAULT = "vdom:${vdom},lb_partition:${lb_partition},log_type:${log_type}";
+
+    private static final int CACHE_SIZE = 1024;
+
+    private final String[] literals;
+    private final String[] fields;
+    private final String[] defaults;
+
+    private TagTemplate(String[] literals, String[] fields, String[] defaults) {
+        this.literals = literals;
+        this.fields = fields;
+        this.defaults = defaults;
+    }
+
+    /**
+     * Parses a template. A {@code ${} without a closing brace is copied as is.
+     */
+    public static TagTemplate compile(String template) {
+        List<String> literals = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        List<String> defaults = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < template.length()) {
+            int start = template.indexOf("${", position);
+            int end = start < 0 ? -1 : template.indexOf('}', start + 2);
+            if (end < 0) {
+                literal.append(template, position, template.length());
+                break;
+            }
+            literal.append(template, position, start);
+            String reference = template.substring(start + 2, end);
+            int separator = reference.indexOf(":-");
+            literals.add(literal.toString());
+            literal.setLength(0);
+            fields.add((separator < 0 ? reference : reference.substring(0, separator)).trim());
+            defaults.add(separator < 0 ? "" : reference.substring(separator + 2));
+            position = end + 1;
+        }
+        literals.add(literal.toString());
+        return new TagTemplate(literals.toArray(new String[0]), fields.toArray(new String[0]),
+                defaults.toArray(new String[0]));
+    }
+
+    /**
+     * A renderer with its own cache; it is not thread-safe, so use one per thread.
+     */
+    public Renderer newRenderer() {
+        return new Renderer();
+    }
+
+    public final class Renderer {
+        private final Object[] values = new Object[fields.length];
+        private final Object[][] keys = new Object[CACHE_SIZE][];
+        private final String[] rendered = new String[CACHE_SIZE];
+
+        private Renderer() {
+        }
+
+        public String render(Message message) {
+            if (fields.length == 0) {
+                return literals[0];
+            }
+            int hash = 1;
+            for (int i = 0; i < fields.length; i++) {
+                Object value = message.getField(fields[i]);
+                values[i] = value;
+                hash = 31 * hash + (value == null ? 0 : value.hashCode());
+            }
+            int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+            if (keys[slot] != null && Arrays.equals(keys[slot], values)) {
+                return rendered[slot];
+            }
+            StringBuilder tags = new StringBuilder(literals[0]);
+            for (int i = 0; i < fields.length; i++) {
+                String value = FieldValues.asString(values[i]);
+                tags.append(value.isEmpty() ? defaults[i] : value).append(literals[i + 1]);
+            }
+            keys[slot] = values.clone();
+            rendered[slot] = tags.toString();
+            return rendered[slot];
+        }
+    }
+}
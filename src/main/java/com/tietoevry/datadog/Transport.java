@@ -0,0 +1,70 @@
+package com.tietoevry.datadog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Posts gzipped batches to the Datadog intake.
+ */
+public interface Transport extends Closeable {
+    String SYNC = "sync";
+    String ASYNC = "async";
+    String HTTP2 = "http2";
+
+    int CONNECT_TIMEOUT_MS = 6 * 1000;
+    int SOCKET_TIMEOUT_MS = 6 * 1000;
+
+    /**
+     * Sends the body and reports the outcome to the callback, either before returning or later from
+     * an I/O thread.
+     *
+     * @param length number of bytes of the body at the start of the array
+     * @param query encoded query parameters to add to the intake URL, or null
+     */
+    void send(byte[] gzippedBody, int length, String query, Callback callback);
+
+    /**
+     * Sends a gzipped body stored in a file, streaming it from disk instead of loading it into the heap.
+     */
+    void send(File gzippedBody, String query, Callback callback);
+
+    interface Callback {
+        /**
+         * @param retryAfter value of the {@code Retry-After} response header, or null
+         */
+        void completed(int statusCode, String retryAfter);
+
+        void failed(Exception e);
+    }
+
+    static String withQuery(String url, String query) {
+        if (query == null || query.isEmpty()) {
+            return url;
+        }
+        return url + (url.indexOf('?') < 0 ? '?' : '&') + query;
+    }
+
+    static Transport create(String name, String url, String apiKey, ConnectionSettings connections) {
+        if (ASYNC.equals(name)) {
+            return new AsyncHttpTransport(url, apiKey, connections);
+        }
+        if (HTTP2.equals(name)) {
+            return new Http2Transport(url, apiKey, connections);
+        }
+        return new SyncHttpTransport(url, apiKey, connections);
+    }
+
+    static boolean isBlocking(String name) {
+        return !ASYNC.equals(name) && !HTTP2.equals(name);
+    }
+
+    static Map<String, String> choices() {
+        Map<String, String> choices = new LinkedHashMap<>();
+        choices.put(SYNC, "Blocking HTTP client, one thread per request");
+        choices.put(ASYNC, "Non-blocking HTTP client");
+        choices.put(HTTP2, "Non-blocking HTTP/2 client, multiplexes requests over few connections");
+        return choices;
+    }
+}
@@ -0,0 +1,103 @@
+package com.tietoevry.datadog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread waits on the {@link RingBuffer} for messages to arrive or for space to free up.
+ * Every side of the buffer gets its own instance.
+ */
+public interface WaitStrategy {
+    String PARK = "park";
+    String YIELD = "yield";
+    String BUSY_SPIN = "busy-spin";
+
+    /**
+     * Waits once until {@code ready} may have become true. Callers re-check their condition in a loop,
+     * so returning early is always allowed.
+     */
+    void await(BooleanSupplier ready, long deadlineNanos);
+
+    /**
+     * Wakes up a thread waiting in {@link #await(BooleanSupplier, long)}.
+     */
+    void signal();
+
+    static WaitStrategy create(String name) {
+        switch (name) {
+            case BUSY_SPIN:
+                return new BusySpin();
+            case YIELD:
+                return new Yielding();
+            default:
+                return new Parking();
+        }
+    }
+
+    static Map<String, String> choices() {
+        Map<String, String> choices = new LinkedHashMap<>();
+        choices.put(PARK, "Park (lowest CPU usage)");
+        choices.put(YIELD, "Yield");
+        choices.put(BUSY_SPIN, "Busy spin (lowest latency, occupies a core per output)");
+        return choices;
+    }
+
+    class BusySpin implements WaitStrategy {
+        @Override
+        public void await(BooleanSupplier ready, long deadlineNanos) {
+        }
+
+        @Override
+        public void signal() {
+        }
+    }
+
+    class Yielding implements WaitStrategy {
+        @Override
+        public void await(BooleanSupplier ready, long deadlineNanos) {
+            Thread.yield();
+        }
+
+        @Override
+        public void signal() {
+        }
+    }
+
+    /**
+     * Parks a single registered waiter until it is signalled. Further threads that wait at the same time
+     * back off with a short timed park instead of registering.
+     */
+    class Parking implements WaitStrategy {
+        private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+        private static final long CONTENDED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+        private final AtomicReference<Thread> waiter = new AtomicReference<>();
+
+        @Override
+        public void await(BooleanSupplier ready, long deadlineNanos) {
+            Thread current = Thread.currentThread();
+            if (!waiter.compareAndSet(null, current)) {
+                LockSupport.parkNanos(this, CONTENDED_PARK_NANOS);
+                return;
+            }
+            try {
+                if (!ready.getAsBoolean()) {
+                    LockSupport.parkNanos(this, Math.min(deadlineNanos - System.nanoTime(), MAX_PARK_NANOS));
+                }
+            } finally {
+                waiter.set(null);
+            }
+        }
+
+        @Override
+        public void signal() {
+            Thread parked = waiter.get();
+            if (parked != null) {
+                LockSupport.unpark(parked);
+            }
+        }
+    }
+}
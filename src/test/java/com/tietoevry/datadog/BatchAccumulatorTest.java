@@ -0,0 +1,106 @@
+package com.tietoevry.datadog;
+
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchAccumulatorTest {
+    private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final List<Batch> batches = new ArrayList<>();
+
+    @Test
+    public void closesBatchOnMessageCount() {
+        BatchAccumulator accumulator = new BatchAccumulator(3, Long.MAX_VALUE, LINGER_NANOS, batches::add);
+        for (int i = 0; i < 7; i++) {
+            accumulator.add(message(), 10, 0, 0);
+        }
+        assertEquals(2, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(1, accumulator.size());
+    }
+
+    @Test
+    public void capsMessageCountAtIntakeLimit() {
+        BatchAccumulator accumulator = new BatchAccumulator(5000, Long.MAX_VALUE, LINGER_NANOS, batches::add);
+        assertEquals(BatchAccumulator.MAX_INTAKE_ENTRIES, accumulator.getMaxMessages());
+    }
+
+    @Test
+    public void closesBatchBeforeExceedingBytes() {
+        BatchAccumulator accumulator = new BatchAccumulator(100, 250, LINGER_NANOS, batches::add);
+        accumulator.add(message(), 100, 0, 0);
+        accumulator.add(message(), 100, 0, 0);
+        assertTrue(batches.isEmpty());
+        // a third would go over the limit, so the first two leave without it
+        accumulator.add(message(), 100, 0, 0);
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(200, batches.get(0).getEstimatedBytes());
+    }
+
+    @Test
+    public void oversizedMessageGoesAlone() {
+        BatchAccumulator accumulator = new BatchAccumulator(100, 250, LINGER_NANOS, batches::add);
+        accumulator.add(message(), 100, 0, 0);
+        accumulator.add(message(), 1000, 0, 0);
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(1).size());
+        assertEquals(0, accumulator.size());
+    }
+
+    @Test
+    public void closesBatchAfterLinger() {
+        BatchAccumulator accumulator = new BatchAccumulator(100, Long.MAX_VALUE, LINGER_NANOS, batches::add);
+        long start = System.nanoTime();
+        accumulator.add(message(), 10, start, start);
+        assertEquals(LINGER_NANOS, accumulator.nanosUntilDeadline(start));
+        accumulator.flushIfExpired(start + LINGER_NANOS - 1);
+        assertTrue(batches.isEmpty());
+        accumulator.flushIfExpired(start + LINGER_NANOS);
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void emptyBatchHasNoDeadline() {
+        BatchAccumulator accumulator = new BatchAccumulator(100, Long.MAX_VALUE, 0, batches::add);
+        assertEquals(Long.MAX_VALUE, accumulator.nanosUntilDeadline(System.nanoTime()));
+        accumulator.flushIfExpired(System.nanoTime());
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void loweringMaxMessagesClosesFullBatch() {
+        BatchAccumulator accumulator = new BatchAccumulator(10, Long.MAX_VALUE, LINGER_NANOS, batches::add);
+        for (int i = 0; i < 4; i++) {
+            accumulator.add(message(), 10, 0, 0);
+        }
+        accumulator.setMaxMessages(3);
+        assertEquals(1, batches.size());
+        assertEquals(4, batches.get(0).size());
+    }
+
+    @Test
+    public void estimatesUtf8Bytes() {
+        for (String text : new String[]{"ascii", "umlaut ü", "euro €", "emoji 😀", ""}) {
+            assertEquals(text, text.getBytes(StandardCharsets.UTF_8).length, BatchAccumulator.utf8Length(text));
+        }
+        Message ascii = message();
+        ascii.addField("text", "aaaa");
+        Message euro = message();
+        euro.addField("text", "€€€€");
+        assertEquals(BatchAccumulator.estimateSize(ascii) + 8, BatchAccumulator.estimateSize(euro));
+    }
+
+    private static Message message() {
+        return new Message("hello", "source", Tools.nowUTC());
+    }
+}
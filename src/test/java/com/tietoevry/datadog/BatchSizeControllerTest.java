@@ -0,0 +1,80 @@
+package com.tietoevry.datadog;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchSizeControllerTest {
+    private static final long INTERVAL_MS = 20;
+
+    @Test
+    public void growsWhileUnderTarget() throws InterruptedException {
+        BatchSizeController controller = controller(100, 1, 1000, 1000);
+        endInterval(controller, 10_000, 5, true);
+        assertEquals(125, controller.getBatchSize());
+        // well above the noise the sleep adds to the interval length
+        endInterval(controller, 20_000, 5, true);
+        assertEquals(157, controller.getBatchSize());
+    }
+
+    @Test
+    public void shrinksWhenP99IsOverTarget() throws InterruptedException {
+        BatchSizeController controller = controller(100, 1, 1000, 10);
+        endInterval(controller, 10_000, 50, true);
+        assertEquals(75, controller.getBatchSize());
+    }
+
+    @Test
+    public void turnsAroundWhenThroughputFalls() throws InterruptedException {
+        BatchSizeController controller = controller(100, 1, 1000, 1000);
+        endInterval(controller, 10_000_000, 5, true);
+        assertEquals(125, controller.getBatchSize());
+        endInterval(controller, 10, 5, true);
+        assertEquals(100, controller.getBatchSize());
+    }
+
+    @Test
+    public void staysWithinBounds() throws InterruptedException {
+        BatchSizeController growing = controller(100, 1, 110, 1000);
+        endInterval(growing, 10_000, 5, true);
+        assertEquals(110, growing.getBatchSize());
+
+        BatchSizeController shrinking = controller(100, 90, 1000, 10);
+        endInterval(shrinking, 10_000, 50, true);
+        assertEquals(90, shrinking.getBatchSize());
+    }
+
+    @Test
+    public void clampsInitialSize() {
+        assertEquals(10, controller(1, 10, 20, 1000).getBatchSize());
+        assertEquals(20, controller(100, 10, 20, 1000).getBatchSize());
+    }
+
+    @Test
+    public void keepsSizeWithoutBacklog() throws InterruptedException {
+        BatchSizeController controller = controller(100, 1, 1000, 10);
+        endInterval(controller, 10_000, 50, false);
+        assertEquals(100, controller.getBatchSize());
+    }
+
+    @Test
+    public void keepsSizeWithoutTarget() throws InterruptedException {
+        BatchSizeController controller = controller(100, 1, 1000, 0);
+        endInterval(controller, 10_000, 50, true);
+        endInterval(controller, 10_000, 50, true);
+        assertEquals(100, controller.getBatchSize());
+    }
+
+    private static BatchSizeController controller(int initial, int min, int max, long targetMs) {
+        return new BatchSizeController(initial, min, max, targetMs, TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS));
+    }
+
+    /** Records one batch after the interval is over, which makes the controller take its step. */
+    private static void endInterval(BatchSizeController controller, long bytes, long latencyMs, boolean backlog)
+            throws InterruptedException {
+        Thread.sleep(INTERVAL_MS + 5);
+        controller.record(bytes, TimeUnit.MILLISECONDS.toNanos(latencyMs), backlog);
+    }
+}
@@ -0,0 +1,128 @@
+package com.tietoevry.datadog;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private static final long OPEN_MS = 50;
+
+    @Test
+    public void opensAtFailureRateOverFullWindow() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 50, OPEN_MS);
+        assertFalse(breaker.onFailure());
+        assertFalse(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertFalse(breaker.onSuccess());
+        assertTrue(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void staysClosedBelowFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 50, OPEN_MS);
+        for (int i = 0; i < 20; i++) {
+            breaker.onSuccess();
+            breaker.onSuccess();
+            breaker.onSuccess();
+            assertFalse(breaker.onFailure());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void letsOneProbeThroughAfterOpenInterval() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        assertFalse(breaker.isProbeDue());
+        TimeUnit.MILLISECONDS.sleep(OPEN_MS + 10);
+        assertTrue(breaker.isProbeDue());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void successfulProbeCloses() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        TimeUnit.MILLISECONDS.sleep(OPEN_MS + 10);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.onSuccess());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // the window starts over
+        assertFalse(breaker.onFailure());
+    }
+
+    @Test
+    public void lateSuccessDoesNotCloseOpenBreaker() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        assertFalse(breaker.onSuccess());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        TimeUnit.MILLISECONDS.sleep(OPEN_MS + 10);
+        // the probe is still due
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void failedProbeReopens() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        TimeUnit.MILLISECONDS.sleep(OPEN_MS + 10);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void probeThatThrowsReopens() throws Exception {
+        CircuitBreaker breaker = open();
+        AtomicBoolean throwing = new AtomicBoolean(true);
+        Transport transport = new Transport() {
+            @Override
+            public void send(byte[] gzippedBody, int length, String query, Callback callback) {
+                if (throwing.get()) {
+                    throw new IllegalStateException("connection pool shut down");
+                }
+                callback.completed(202, null);
+            }
+
+            @Override
+            public void send(File gzippedBody, String query, Callback callback) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (RetryingSender sender = new RetryingSender(transport, new RetryPolicy(0, 1, 1), breaker,
+                1024, 1024, 1, null)) {
+            TimeUnit.MILLISECONDS.sleep(OPEN_MS + 10);
+            AtomicBoolean delivered = new AtomicBoolean(true);
+            sender.sendOnce(GzipBody.of(new byte[1]), 1, delivered::set);
+            assertFalse(delivered.get());
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+            throwing.set(false);
+            TimeUnit.MILLISECONDS.sleep(OPEN_MS + 10);
+            sender.sendOnce(GzipBody.of(new byte[1]), 1, delivered::set);
+            assertTrue(delivered.get());
+            assertTrue(sender.isAvailable());
+        }
+    }
+
+    private static CircuitBreaker open() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 50, OPEN_MS);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
@@ -0,0 +1,136 @@
+package com.tietoevry.datadog;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void clampsInitialLimit() {
+        assertEquals(2, new ConcurrencyLimiter(1, 2, 8).getLimit());
+        assertEquals(8, new ConcurrencyLimiter(20, 2, 8).getLimit());
+        assertEquals(1, new ConcurrencyLimiter(0, 0, 0).getLimit());
+    }
+
+    @Test
+    public void refusesBeyondLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8);
+        assertTrue(limiter.tryAcquire(System.nanoTime()) >= 0);
+        assertTrue(limiter.tryAcquire(System.nanoTime()) >= 0);
+        assertEquals(-1, limiter.tryAcquire(System.nanoTime() + MS));
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void growsByAboutOnePerLimitSuccessesAtLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8);
+        // every request finishes while the limit is fully used, so each adds 1/limit: 4 + 1/4 + 1/4.25 + ...
+        for (int i = 0; i < 5; i++) {
+            fill(limiter);
+            succeed(limiter);
+            drain(limiter);
+        }
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void doesNotGrowWhileUnderused() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            succeed(limiter);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void growsNoFurtherThanMax() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 3);
+        for (int i = 0; i < 100; i++) {
+            fill(limiter);
+            succeed(limiter);
+            drain(limiter);
+        }
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksOnOverload() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 16);
+        long start = limiter.acquire();
+        limiter.release(start, 1000, ConcurrencyLimiter.Result.OVERLOAD);
+        assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksOncePerRoundTrip() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 16);
+        long first = limiter.acquire();
+        long second = limiter.acquire();
+        limiter.release(first, 1000, ConcurrencyLimiter.Result.OVERLOAD);
+        // sent before the limit went down, so it reports the same overload
+        limiter.release(second, 1000, ConcurrencyLimiter.Result.OVERLOAD);
+        assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksNoFurtherThanMin() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 3, 16);
+        for (int i = 0; i < 100; i++) {
+            long start = limiter.acquire();
+            limiter.release(start, 1000, ConcurrencyLimiter.Result.OVERLOAD);
+        }
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void ignoredResultKeepsLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8);
+        fill(limiter);
+        limiter.release(System.nanoTime(), 1000, ConcurrencyLimiter.Result.IGNORE);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(3, limiter.getInFlight());
+    }
+
+    @Test
+    public void slowRoundTripOfSameSizeCountsAsOverload() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 16);
+        limiter.acquire();
+        limiter.release(System.nanoTime() - MS, 1000, ConcurrencyLimiter.Result.SUCCESS);
+        limiter.acquire();
+        limiter.release(System.nanoTime() - 10 * MS, 1000, ConcurrencyLimiter.Result.SUCCESS);
+        assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void slowRoundTripOfLargerRequestIsNoOverload() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 16);
+        limiter.acquire();
+        limiter.release(System.nanoTime() - MS, 1000, ConcurrencyLimiter.Result.SUCCESS);
+        limiter.acquire();
+        limiter.release(System.nanoTime() - 10 * MS, 100_000, ConcurrencyLimiter.Result.SUCCESS);
+        assertEquals(10, limiter.getLimit());
+    }
+
+    private static void fill(ConcurrencyLimiter limiter) throws InterruptedException {
+        while (limiter.getInFlight() < limiter.getLimit()) {
+            limiter.acquire();
+        }
+    }
+
+    /** Ends one request with a steady round trip of 1 ms, so the latency signal stays quiet. */
+    private static void succeed(ConcurrencyLimiter limiter) {
+        limiter.release(System.nanoTime() - MS, 1000, ConcurrencyLimiter.Result.SUCCESS);
+    }
+
+    private static void drain(ConcurrencyLimiter limiter) {
+        while (limiter.getInFlight() > 0) {
+            limiter.release(System.nanoTime(), 1000, ConcurrencyLimiter.Result.IGNORE);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.tietoevry.datadog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskSpoolTest {
+    private static final int SEGMENT_SIZE = 64;
+    /** Records of 20 bytes take 28 bytes with their header, two to a segment. */
+    private static final int RECORD_SIZE = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsRecordsInOrderUntilAcknowledged() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024)) {
+            assertTrue(spool.isEmpty());
+            spool.append(bytes("a"));
+            spool.append(bytes("b"));
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            assertEquals(Arrays.asList("a", "b"), strings(spool.read(10, Long.MAX_VALUE, end)));
+            assertEquals(Arrays.asList("a", "b"), strings(spool.read(10, Long.MAX_VALUE, end)));
+            assertTrue(spool.isAhead(end[0]));
+            spool.acknowledge(end[0]);
+            assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    public void resumesAtCheckpointAfterRestart() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024)) {
+            for (String record : Arrays.asList("a", "b", "c", "d")) {
+                spool.append(bytes(record));
+            }
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            assertEquals(Arrays.asList("a", "b"), strings(spool.read(2, Long.MAX_VALUE, end)));
+            spool.acknowledge(end[0]);
+        }
+        try (DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024)) {
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            assertEquals(Arrays.asList("c", "d"), strings(spool.read(10, Long.MAX_VALUE, end)));
+            spool.append(bytes("e"));
+            assertEquals(Arrays.asList("c", "d", "e"), strings(spool.read(10, Long.MAX_VALUE, end)));
+        }
+    }
+
+    @Test
+    public void discardsTornRecordOnRecovery() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024)) {
+            spool.append(bytes("first"));
+            spool.append(bytes("second"));
+            spool.append(bytes("third"));
+        }
+        // flip a byte of the last record, as if the process died while writing it
+        int offset = 8 + 5 + 8 + 6 + 8;
+        try (RandomAccessFile segment = new RandomAccessFile(segment(directory, 0).toFile(), "rw")) {
+            segment.seek(offset);
+            segment.write('T' ^ segment.read());
+        }
+        try (DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024)) {
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            assertEquals(Arrays.asList("first", "second"), strings(spool.read(10, Long.MAX_VALUE, end)));
+            spool.append(bytes("fourth"));
+            assertEquals(Arrays.asList("first", "second", "fourth"), strings(spool.read(10, Long.MAX_VALUE, end)));
+        }
+    }
+
+    @Test
+    public void deletesAcknowledgedSegments() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, SEGMENT_SIZE, 1024 * 1024)) {
+            for (int i = 0; i < 6; i++) {
+                assertTrue(spool.append(record(i)));
+            }
+            assertTrue(Files.exists(segment(directory, 0)));
+            assertTrue(Files.exists(segment(directory, 2)));
+
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            List<byte[]> records = spool.read(3, Long.MAX_VALUE, end);
+            assertEquals(3, records.size());
+            assertArrayEquals(record(2), records.get(2));
+            spool.acknowledge(end[0]);
+            assertFalse(Files.exists(segment(directory, 0)));
+            assertTrue(Files.exists(segment(directory, 1)));
+
+            records = spool.read(10, Long.MAX_VALUE, end);
+            assertEquals(3, records.size());
+            spool.acknowledge(end[0]);
+            assertFalse(Files.exists(segment(directory, 1)));
+            // the segment being written to stays
+            assertTrue(Files.exists(segment(directory, 2)));
+            assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    public void refusesRecordsBeyondSizeLimit() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(spool.append(record(i)));
+            }
+            assertFalse(spool.append(record(4)));
+            // reading into the second segment frees the first
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            spool.read(3, Long.MAX_VALUE, end);
+            spool.acknowledge(end[0]);
+            assertTrue(spool.append(record(4)));
+        }
+    }
+
+    @Test
+    public void positionInEarlierSegmentIsNotAhead() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, SEGMENT_SIZE, 1024 * 1024)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(record(i));
+            }
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            spool.read(2, Long.MAX_VALUE, end);
+            DiskSpool.Position endOfFirstSegment = end[0];
+            spool.read(3, Long.MAX_VALUE, end);
+            spool.acknowledge(end[0]);
+            // offset 56 in segment 0 lies before offset 28 in segment 1
+            assertFalse(spool.isAhead(endOfFirstSegment));
+            assertFalse(spool.isAhead(end[0]));
+        }
+    }
+
+    @Test
+    public void skipsCorruptRecordInWriteSegment() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024)) {
+            spool.append(bytes("first"));
+            spool.append(bytes("second"));
+            spool.append(bytes("third"));
+            try (RandomAccessFile segment = new RandomAccessFile(segment(directory, 0).toFile(), "rw")) {
+                segment.seek(8 + 5 + 8);
+                segment.write('S' ^ segment.read());
+            }
+            DiskSpool.Position[] end = new DiskSpool.Position[1];
+            assertEquals(Arrays.asList("first"), strings(spool.read(10, Long.MAX_VALUE, end)));
+            spool.acknowledge(end[0]);
+            assertTrue(spool.isEmpty());
+            spool.append(bytes("fourth"));
+            assertEquals(Arrays.asList("fourth"), strings(spool.read(10, Long.MAX_VALUE, end)));
+        }
+    }
+
+    @Test
+    public void refusesRecordLargerThanSegment() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (DiskSpool spool = new DiskSpool(directory, SEGMENT_SIZE, 1024 * 1024)) {
+            assertFalse(spool.append(new byte[SEGMENT_SIZE]));
+            assertTrue(spool.isEmpty());
+        }
+    }
+
+    @Test
+    public void lockRefusesSecondSpoolOnSameDirectory() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024);
+        try {
+            new DiskSpool(directory, 1024, 1024 * 1024).close();
+            fail("Opened a spool directory twice");
+        } catch (IOException expected) {
+            // in use
+        } finally {
+            spool.close();
+        }
+        new DiskSpool(directory, 1024, 1024 * 1024).close();
+    }
+
+    @Test
+    public void closedSpoolRefusesAppends() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        DiskSpool spool = new DiskSpool(directory, 1024, 1024 * 1024);
+        spool.close();
+        assertFalse(spool.append(bytes("late")));
+        spool.close();
+    }
+
+    private static Path segment(Path directory, long segment) {
+        return directory.resolve(String.format("segment-%020d.dat", segment));
+    }
+
+    private static byte[] record(int i) {
+        byte[] record = new byte[RECORD_SIZE];
+        Arrays.fill(record, (byte) i);
+        return record;
+    }
+
+    private static byte[] bytes(String record) {
+        return record.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> strings(List<byte[]> records) {
+        List<String> strings = new ArrayList<>();
+        for (byte[] record : records) {
+            strings.add(new String(record, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,349 @@
+package com.tietoevry.datadog;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EntryEncoderTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String SOURCE = "cportal";
+    private static final String ESCAPES = "quote \" backslash \\ slash </ newline \n tab \t control \u0001 umlaut ü euro €";
+
+    @Test
+    public void nestedBatchMatchesBaseline() throws IOException {
+        List<Message> messages = Arrays.asList(richMessage(), richMessage(), plainMessage());
+        assertSameEntries(baseline(messages), encode(nested(), messages));
+    }
+
+    @Test
+    public void nestedEntryMatchesBaseline() throws IOException {
+        Message message = richMessage();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        nested().writeEntry(message, out);
+        assertSameEntries(baseline(Collections.singletonList(message)), "[" + utf8(out) + "]");
+    }
+
+    @Test
+    public void emptyBatch() throws IOException {
+        assertEquals("[]", encode(nested(), Collections.emptyList()));
+    }
+
+    @Test
+    public void skipsNullFields() throws IOException {
+        Message message = plainMessage();
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("kept", 1);
+        nested.put("dropped", null);
+        message.addField("nested", nested);
+        JsonNode fields = messageFields(encode(nested(), Collections.singletonList(message)));
+        assertTrue(fields.get("nested").has("kept"));
+        assertFalse(fields.get("nested").has("dropped"));
+    }
+
+    @Test
+    public void formatsNumbersLikeBaseline() throws IOException {
+        Message message = plainMessage();
+        message.addField("int", 42);
+        message.addField("long", 1L << 40);
+        message.addField("whole", 2.0);
+        message.addField("fraction", 1.5);
+        message.addField("float", 0.25f);
+        message.addField("exponent", 1.0e20);
+        message.addField("big", new BigDecimal("12.340"));
+        String fields = MAPPER.readTree(encode(nested(), Collections.singletonList(message))).get(0)
+                .get("message").textValue();
+        String baseline = new JSONObject(baselineFields(message)).toString();
+        for (String field : Arrays.asList("int", "long", "whole", "fraction", "float", "exponent", "big")) {
+            assertEquals(field, numberText(baseline, field), numberText(fields, field));
+        }
+        assertEquals("2", numberText(fields, "whole"));
+    }
+
+    @Test
+    public void writesNonFiniteNumbersAsStrings() throws IOException {
+        Message message = plainMessage();
+        message.addField("nan", Double.NaN);
+        message.addField("infinite", Double.POSITIVE_INFINITY);
+        JsonNode fields = messageFields(encode(nested(), Collections.singletonList(message)));
+        assertEquals("NaN", fields.get("nan").textValue());
+        assertEquals("Infinity", fields.get("infinite").textValue());
+    }
+
+    @Test
+    public void escapesStrings() throws IOException {
+        Message message = plainMessage();
+        message.addField("text", ESCAPES);
+        String encoded = encode(nested(), Collections.singletonList(message));
+        assertFalse("raw control character in output", encoded.contains("\u0001"));
+        assertEquals(ESCAPES, messageFields(encoded).get("text").textValue());
+    }
+
+    @Test
+    public void attributesFlattenFields() throws IOException {
+        Message message = richMessage();
+        JsonNode entry = MAPPER.readTree(encode(attributes(), Collections.singletonList(message))).get(0);
+        assertEquals(SOURCE, entry.get("ddsource").textValue());
+        assertEquals("vdom:root,lb_partition:3,log_type:traffic", entry.get("ddtags").textValue());
+        assertEquals("fw-1", entry.get("hostname").textValue());
+        assertEquals("hello", entry.get("message").textValue());
+        assertEquals(7, entry.get("count").intValue());
+        assertEquals(ESCAPES, entry.get("text").textValue());
+        assertEquals("value", entry.get("map").get("inner").textValue());
+        assertEquals(3, entry.get("list").size());
+        assertEquals("traffic", entry.get("log_type").textValue());
+    }
+
+    @Test
+    public void attributesSkipReservedFields() throws IOException {
+        Message message = plainMessage();
+        message.addField("service", "from-message");
+        message.addField("ddsource", "from-message");
+        message.addField("ddtags", "from-message");
+        String encoded = encode(attributes(), Collections.singletonList(message));
+        JsonNode entry = MAPPER.readTree(encoded).get(0);
+        assertEquals(SOURCE, entry.get("service").textValue());
+        assertEquals(SOURCE, entry.get("ddsource").textValue());
+        assertEquals("vdom:root,lb_partition:3,log_type:traffic", entry.get("ddtags").textValue());
+        assertEquals("fw-1", entry.get("hostname").textValue());
+        assertFalse("reserved attribute written twice", encoded.contains("from-message"));
+    }
+
+    @Test
+    public void attributesCarryTheSameFieldsAsNested() throws IOException {
+        Message message = richMessage();
+        JsonNode flat = MAPPER.readTree(encode(attributes(), Collections.singletonList(message))).get(0);
+        JsonNode nested = messageFields(encode(nested(), Collections.singletonList(message)));
+        nested.fieldNames().forEachRemaining(field -> {
+            if (!field.equals("hostname")) {
+                assertEquals(field, nested.get(field), flat.get(field));
+            }
+        });
+        assertEquals(nested.size(), flat.size() - 3);
+    }
+
+    @Test
+    public void nestedKeepsAllFieldsInMessage() throws IOException {
+        Message message = plainMessage();
+        message.addField("service", "from-message");
+        JsonNode entry = MAPPER.readTree(encode(nested(), Collections.singletonList(message))).get(0);
+        assertEquals(5, entry.size());
+        assertEquals(SOURCE, entry.get("service").textValue());
+        JsonNode fields = messageFields(encode(nested(), Collections.singletonList(message)));
+        assertEquals("from-message", fields.get("service").textValue());
+        assertEquals("fw-1", fields.get("hostname").textValue());
+        assertEquals("hello", fields.get("message").textValue());
+    }
+
+    @Test
+    public void hoistsSharedAttributesIntoQuery() throws IOException {
+        List<Message> messages = Arrays.asList(richMessage(), plainMessage());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String query = hoisting(MessageFormat.NESTED).writeBatch(messages, out);
+        Map<String, String> parameters = parse(query);
+        assertEquals(SOURCE, parameters.get("ddsource"));
+        assertEquals(SOURCE, parameters.get("service"));
+        assertEquals("vdom:root,lb_partition:3,log_type:traffic", parameters.get("ddtags"));
+        assertEquals("fw-1", parameters.get("hostname"));
+        for (JsonNode entry : MAPPER.readTree(utf8(out))) {
+            for (String attribute : parameters.keySet()) {
+                assertFalse(attribute + " sent twice", entry.has(attribute));
+            }
+        }
+        assertEquivalent(messages, MessageFormat.NESTED);
+    }
+
+    @Test
+    public void keepsDifferingAttributesInEntries() throws IOException {
+        Message other = plainMessage();
+        other.addField("vdom", "guest");
+        other.addField("hostname", "fw-2");
+        List<Message> messages = Arrays.asList(plainMessage(), other);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, String> parameters = parse(hoisting(MessageFormat.NESTED).writeBatch(messages, out));
+        assertFalse(parameters.containsKey("ddtags"));
+        assertFalse(parameters.containsKey("hostname"));
+        JsonNode entries = MAPPER.readTree(utf8(out));
+        assertEquals("vdom:guest,lb_partition:3,log_type:traffic", entries.get(1).get("ddtags").textValue());
+        assertEquals("fw-2", entries.get(1).get("hostname").textValue());
+        assertEquivalent(messages, MessageFormat.NESTED);
+    }
+
+    @Test
+    public void keepsEmptyHostnameInEntries() throws IOException {
+        Message message = plainMessage();
+        message.removeField("hostname");
+        List<Message> messages = Arrays.asList(message, message);
+        assertFalse(parse(hoisting(MessageFormat.NESTED).writeBatch(messages, new ByteArrayOutputStream()))
+                .containsKey("hostname"));
+        assertEquivalent(messages, MessageFormat.NESTED);
+    }
+
+    @Test
+    public void hoistingWorksWithAttributesFormat() throws IOException {
+        assertEquivalent(Arrays.asList(richMessage(), plainMessage()), MessageFormat.ATTRIBUTES);
+    }
+
+    @Test
+    public void reusesQueryOfPreviousBatch() throws IOException {
+        EntryEncoder encoder = hoisting(MessageFormat.NESTED);
+        String first = encoder.writeBatch(Collections.singletonList(plainMessage()), new ByteArrayOutputStream());
+        String second = encoder.writeBatch(Collections.singletonList(plainMessage()), new ByteArrayOutputStream());
+        assertSame(first, second);
+    }
+
+    /**
+     * Entries written with hoisting, with the query parameters added back, equal the entries written
+     * without it.
+     */
+    private static void assertEquivalent(List<Message> messages, MessageFormat format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, String> parameters = parse(hoisting(format).writeBatch(messages, out));
+        JsonNode hoisted = MAPPER.readTree(utf8(out));
+        for (JsonNode entry : hoisted) {
+            parameters.forEach(((ObjectNode) entry)::put);
+        }
+        EntryEncoder plain = new EntryEncoder(format, TagTemplate.compile(TagTemplate.DEFAULT), SOURCE, SOURCE,
+                false);
+        assertSameEntries(encode(plain, messages), hoisted.toString());
+    }
+
+    private static EntryEncoder hoisting(MessageFormat format) {
+        return new EntryEncoder(format, TagTemplate.compile(TagTemplate.DEFAULT), SOURCE, SOURCE, true);
+    }
+
+    private static Map<String, String> parse(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : Splitter.on('&').split(query)) {
+            int separator = parameter.indexOf('=');
+            parameters.put(parameter.substring(0, separator),
+                    URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    static EntryEncoder attributes() {
+        return new EntryEncoder(MessageFormat.ATTRIBUTES, TagTemplate.compile(TagTemplate.DEFAULT), SOURCE, SOURCE,
+                false);
+    }
+
+    static EntryEncoder nested() {
+        return new EntryEncoder(MessageFormat.NESTED, TagTemplate.compile(TagTemplate.DEFAULT), SOURCE, SOURCE,
+                false);
+    }
+
+    static String encode(EntryEncoder encoder, List<Message> messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeBatch(messages, out);
+        return utf8(out);
+    }
+
+    static Message plainMessage() {
+        Message message = new Message("hello", "source", Tools.nowUTC());
+        message.addField("vdom", "root");
+        message.addField("lb_partition", "3");
+        message.addField("log_type", "traffic");
+        message.addField("hostname", "fw-1");
+        return message;
+    }
+
+    static Message richMessage() {
+        Message message = plainMessage();
+        message.addField("text", ESCAPES);
+        message.addField("count", 7);
+        message.addField("ratio", 0.5);
+        message.addField("enabled", true);
+        message.addField("list", Arrays.asList("a", 1, 2.5));
+        Map<String, Object> map = new HashMap<>();
+        map.put("inner", "value");
+        map.put("number", 3);
+        message.addField("map", map);
+        return message;
+    }
+
+    /**
+     * The batch as the output encoded it with org.json before the streaming encoder.
+     */
+    static String baseline(List<Message> messages) {
+        JSONArray entries = new JSONArray();
+        for (Message message : messages) {
+            JSONObject json = new JSONObject();
+            message.getFieldsEntries().forEach(item -> json.put(item.getKey(), item.getValue()));
+            String vdom = json.has("vdom") ? json.getString("vdom") : "";
+            String lbPartition = json.has("lb_partition") ? json.getString("lb_partition") : "";
+            String logType = json.has("log_type") ? json.getString("log_type") : "";
+            JSONObject entry = new JSONObject();
+            entry.put("ddsource", SOURCE);
+            entry.put("ddtags", "vdom:" + vdom + ",lb_partition:" + lbPartition + ",log_type:" + logType);
+            entry.put("hostname", json.has("hostname") ? json.getString("hostname") : "");
+            entry.put("message", json.toString());
+            entry.put("service", SOURCE);
+            entries.put(entry);
+        }
+        return entries.toString();
+    }
+
+    private static Map<String, Object> baselineFields(Message message) {
+        Map<String, Object> fields = new HashMap<>();
+        message.getFieldsEntries().forEach(item -> fields.put(item.getKey(), item.getValue()));
+        return fields;
+    }
+
+    /**
+     * Compares two arrays of entries as JSON, with the nested message parsed as well, so key order and
+     * escaping do not matter.
+     */
+    static void assertSameEntries(String expected, String actual) throws IOException {
+        assertEquals(normalize(MAPPER.readTree(expected)).toString(), normalize(MAPPER.readTree(actual)).toString());
+    }
+
+    private static JsonNode normalize(JsonNode entries) throws IOException {
+        for (JsonNode entry : entries) {
+            JsonNode message = entry.get("message");
+            if (message != null && message.isTextual() && message.textValue().startsWith("{")) {
+                ((ObjectNode) entry).set("message", MAPPER.readTree(message.textValue()));
+            }
+        }
+        return MAPPER.readTree(MAPPER.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+                .writeValueAsString(MAPPER.treeToValue(entries, Object.class)));
+    }
+
+    private static JsonNode messageFields(String batch) throws IOException {
+        return MAPPER.readTree(MAPPER.readTree(batch).get(0).get("message").textValue());
+    }
+
+    private static String numberText(String json, String field) {
+        int start = json.indexOf("\"" + field + "\":") + field.length() + 3;
+        int end = start;
+        while (end < json.length() && json.charAt(end) != ',' && json.charAt(end) != '}') {
+            end++;
+        }
+        return json.substring(start, end);
+    }
+
+    static String utf8(ByteArrayOutputStream out) {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
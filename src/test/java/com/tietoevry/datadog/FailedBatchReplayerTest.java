@@ -0,0 +1,135 @@
+package com.tietoevry.datadog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FailedBatchReplayerTest {
+    private static final long OPEN_MS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicBoolean down = new AtomicBoolean();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+    private final Transport transport = new Transport() {
+        @Override
+        public void send(byte[] gzippedBody, int length, String query, Callback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void send(File gzippedBody, String query, Callback callback) {
+            if (down.get() || failures.getAndUpdate(left -> Math.max(0, left - 1)) > 0) {
+                callback.completed(503, null);
+            } else {
+                delivered.add(query);
+                callback.completed(202, null);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Test
+    public void replaysOldestFirstAndDeletes() throws Exception {
+        try (FailedBatchStore store = store("a", "b", "c")) {
+            replay(store, new CircuitBreaker(10, 50, OPEN_MS), 1024 * 1024, () -> {
+                assertTrue(await(store::isEmpty));
+                assertEquals(Arrays.asList("a", "b", "c"), delivered);
+                assertTrue(store.list().isEmpty());
+            });
+        }
+    }
+
+    @Test
+    public void keepsBatchUntilTheIntakeTakesIt() throws Exception {
+        failures.set(2);
+        try (FailedBatchStore store = store("a", "b")) {
+            replay(store, new CircuitBreaker(10, 50, OPEN_MS), 1024 * 1024, () -> {
+                assertTrue(await(store::isEmpty));
+                // the refused batch is retried before anything behind it
+                assertEquals(Arrays.asList("a", "b"), delivered);
+            });
+        }
+    }
+
+    @Test
+    public void probesOpenBreaker() throws Exception {
+        down.set(true);
+        CircuitBreaker breaker = new CircuitBreaker(2, 50, OPEN_MS);
+        try (FailedBatchStore store = store("a", "b", "c")) {
+            replay(store, breaker, 1024 * 1024, () -> {
+                // only the replayer sends, so its own failures open the breaker
+                assertTrue(await(() -> breaker.getState() == CircuitBreaker.State.OPEN));
+                down.set(false);
+                assertTrue("store still holds batches after the intake came back", await(store::isEmpty));
+                assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+            });
+        }
+    }
+
+    @Test
+    public void keepsToBytesPerSecond() throws Exception {
+        try (FailedBatchStore store = store("a", "b", "c")) {
+            long start = System.nanoTime();
+            // 1000 bytes per batch at 2000 bytes per second: the second and third wait half a second each
+            replay(store, new CircuitBreaker(10, 50, OPEN_MS), 2000, () -> assertTrue(await(store::isEmpty)));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        }
+    }
+
+    private FailedBatchStore store(String... queries) throws Exception {
+        FailedBatchStore store = new FailedBatchStore(folder.newFolder().toPath(), 1024 * 1024);
+        for (String query : queries) {
+            assertTrue(store.store(GzipBody.of(new byte[1000]), query, 1));
+        }
+        return store;
+    }
+
+    private void replay(FailedBatchStore store, CircuitBreaker breaker, long bytesPerSecond, Check check)
+            throws Exception {
+        try (RetryingSender sender = new RetryingSender(transport, new RetryPolicy(0, 1, 1), breaker,
+                1024, 1024, 1, null)) {
+            FailedBatchReplayer replayer = new FailedBatchReplayer(store, sender, bytesPerSecond, 10);
+            replayer.start();
+            try {
+                check.run();
+            } finally {
+                replayer.stopThread();
+                replayer.join();
+            }
+        }
+    }
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package com.tietoevry.datadog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FailedBatchStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsBatchesAcrossReopen() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        try (FailedBatchStore store = new FailedBatchStore(directory, 1024 * 1024)) {
+            assertTrue(store.isEmpty());
+            assertTrue(store.store(body(10, 1), "ddtags=env%3Aprod", 3));
+            assertTrue(store.store(body(20, 2), null, 5));
+        }
+        try (FailedBatchStore store = new FailedBatchStore(directory, 1024 * 1024)) {
+            assertFalse(store.isEmpty());
+            List<FailedBatchStore.Entry> entries = store.list();
+            assertEquals(2, entries.size());
+            assertEquals("ddtags=env%3Aprod", entries.get(0).getQuery());
+            assertEquals(3, entries.get(0).getMessages());
+            assertArrayEquals(body(10, 1).getBytes(), Files.readAllBytes(entries.get(0).getBody().toPath()));
+            assertNull(entries.get(1).getQuery());
+            assertEquals(5, entries.get(1).getMessages());
+            assertEquals(20, entries.get(1).getBytes());
+
+            // new batches come after the ones already stored
+            assertTrue(store.store(body(30, 3), null, 1));
+            assertEquals(30, store.list().get(2).getBytes());
+
+            for (FailedBatchStore.Entry entry : store.list()) {
+                store.delete(entry);
+            }
+            assertTrue(store.isEmpty());
+            assertTrue(store.list().isEmpty());
+        }
+    }
+
+    @Test
+    public void refusesBeyondMaxBytes() throws Exception {
+        try (FailedBatchStore store = new FailedBatchStore(folder.newFolder().toPath(), 1500)) {
+            assertTrue(store.store(body(1000, 1), null, 1));
+            assertFalse(store.store(body(1000, 2), null, 1));
+            assertEquals(1, store.list().size());
+
+            store.delete(store.list().get(0));
+            assertTrue(store.store(body(1000, 2), null, 1));
+        }
+    }
+
+    @Test
+    public void closeFinishesLaterWrites() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        AtomicInteger stored = new AtomicInteger();
+        FailedBatchStore store = new FailedBatchStore(directory, 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            store.storeLater(body(100, i), null, 1, written -> {
+                if (written) {
+                    stored.incrementAndGet();
+                }
+            });
+        }
+        store.close();
+        assertEquals(3, stored.get());
+        assertEquals(3, store.list().size());
+
+        AtomicInteger refused = new AtomicInteger();
+        store.storeLater(body(100, 4), null, 1, written -> {
+            if (!written) {
+                refused.incrementAndGet();
+            }
+        });
+        assertEquals(1, refused.get());
+        assertEquals(3, store.list().size());
+    }
+
+    @Test
+    public void dropsUnfinishedBatchesOnOpen() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        Files.write(directory.resolve("batch-00000000000000000007.properties"), "messages=1\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("batch-00000000000000000008.json.gz.tmp"), new byte[10]);
+        try (FailedBatchStore store = new FailedBatchStore(directory, 1024 * 1024)) {
+            assertTrue(store.isEmpty());
+            assertTrue(store.list().isEmpty());
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(0, files.count());
+            }
+        }
+    }
+
+    private static GzipBody body(int length, int fill) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return GzipBody.of(bytes);
+    }
+}
@@ -0,0 +1,116 @@
+package com.tietoevry.datadog;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GzipCompressorTest {
+    private final BufferPool pool = new BufferPool(4);
+    private final GzipCompressor gzip = new GzipCompressor(pool);
+
+    @After
+    public void end() {
+        gzip.end();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] data = "[{\"message\":\"hello\"},{\"message\":\"world\"}]".getBytes(StandardCharsets.UTF_8);
+        gzip.start();
+        gzip.write(data, 0, data.length);
+        GzipBody body = gzip.finish();
+        assertArrayEquals(data, gunzip(body));
+        assertEquals(data.length, gzip.getUncompressedLength());
+    }
+
+    @Test
+    public void reusesDeflaterAcrossBodies() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            byte[] data = ("body " + i + " " + repeat("x", i * 100)).getBytes(StandardCharsets.UTF_8);
+            gzip.start();
+            gzip.write(data, 0, data.length);
+            GzipBody body = gzip.finish();
+            assertArrayEquals(data, gunzip(body));
+            body.release();
+        }
+    }
+
+    @Test
+    public void emptyBody() throws IOException {
+        gzip.start();
+        assertEquals(0, gunzip(gzip.finish()).length);
+    }
+
+    @Test
+    public void singleByteWrites() throws IOException {
+        byte[] data = "abc".getBytes(StandardCharsets.UTF_8);
+        gzip.start();
+        for (byte b : data) {
+            gzip.write(b);
+        }
+        assertArrayEquals(data, gunzip(gzip.finish()));
+    }
+
+    @Test
+    public void growsBufferForIncompressibleData() throws IOException {
+        byte[] data = new byte[512 * 1024];
+        new Random(42).nextBytes(data);
+        gzip.start();
+        gzip.write(data, 0, data.length);
+        GzipBody body = gzip.finish();
+        assertTrue(body.getLength() > data.length);
+        assertArrayEquals(data, gunzip(body));
+    }
+
+    @Test
+    public void restartDiscardsUnfinishedBody() throws IOException {
+        byte[] discarded = "discarded".getBytes(StandardCharsets.UTF_8);
+        byte[] data = "kept".getBytes(StandardCharsets.UTF_8);
+        gzip.start();
+        gzip.write(discarded, 0, discarded.length);
+        gzip.start();
+        gzip.write(data, 0, data.length);
+        assertArrayEquals(data, gunzip(gzip.finish()));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        gzip.start();
+        GzipBody body = gzip.finish();
+        body.release();
+        body.release();
+        assertSame(body.getBytes(), pool.acquire());
+    }
+
+    private static byte[] gunzip(GzipBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body.getBytes(), 0, body.getLength()))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package com.tietoevry.datadog;
+
+import org.apache.http.client.utils.DateUtils;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+    private final RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+
+    @Test
+    public void classifiesStatusCodes() {
+        assertEquals(RetryPolicy.Outcome.SUCCESS, policy.classify(200));
+        assertEquals(RetryPolicy.Outcome.SUCCESS, policy.classify(202));
+        assertEquals(RetryPolicy.Outcome.RETRY, policy.classify(408));
+        assertEquals(RetryPolicy.Outcome.RETRY, policy.classify(429));
+        assertEquals(RetryPolicy.Outcome.RETRY, policy.classify(500));
+        assertEquals(RetryPolicy.Outcome.RETRY, policy.classify(503));
+        assertEquals(RetryPolicy.Outcome.PERMANENT_FAILURE, policy.classify(400));
+        assertEquals(RetryPolicy.Outcome.PERMANENT_FAILURE, policy.classify(403));
+        assertEquals(RetryPolicy.Outcome.PERMANENT_FAILURE, policy.classify(413));
+        assertEquals(RetryPolicy.Outcome.PERMANENT_FAILURE, policy.classify(301));
+    }
+
+    @Test
+    public void limitsRetries() {
+        assertTrue(policy.canRetry(1));
+        assertTrue(policy.canRetry(3));
+        assertFalse(policy.canRetry(4));
+        assertFalse(new RetryPolicy(0, 100, 1000).canRetry(1));
+    }
+
+    @Test
+    public void backoffStaysUnderCeiling() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(policy.backoffMs(1, null) <= 100);
+            assertTrue(policy.backoffMs(3, null) <= 400);
+            assertTrue(policy.backoffMs(20, null) <= 1000);
+            assertTrue(policy.backoffMs(20, null) >= 0);
+        }
+    }
+
+    @Test
+    public void backoffHonoursRetryAfter() {
+        assertTrue(policy.backoffMs(1, "5") >= 5000);
+    }
+
+    @Test
+    public void parsesRetryAfterSeconds() {
+        assertEquals(0, RetryPolicy.retryAfterMs(null));
+        assertEquals(0, RetryPolicy.retryAfterMs(""));
+        assertEquals(3000, RetryPolicy.retryAfterMs("3"));
+        assertEquals(3000, RetryPolicy.retryAfterMs(" 3 "));
+        assertEquals(0, RetryPolicy.retryAfterMs("-3"));
+        assertEquals(0, RetryPolicy.retryAfterMs("soon"));
+    }
+
+    @Test
+    public void parsesRetryAfterDate() {
+        String inOneMinute = DateUtils.formatDate(new Date(System.currentTimeMillis() + 60_000));
+        long delay = RetryPolicy.retryAfterMs(inOneMinute);
+        assertTrue(delay > 55_000 && delay <= 60_000);
+        String past = DateUtils.formatDate(new Date(System.currentTimeMillis() - 60_000));
+        assertEquals(0, RetryPolicy.retryAfterMs(past));
+    }
+}
@@ -0,0 +1,130 @@
+package com.tietoevry.datadog;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new RingBuffer<String>(5, Long.MAX_VALUE, WaitStrategy.PARK).capacity());
+        assertEquals(8, new RingBuffer<String>(8, Long.MAX_VALUE, WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    public void keepsOrderAcrossWraparound() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4, Long.MAX_VALUE, WaitStrategy.PARK);
+        int next = 0;
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(buffer.offer(lap * 3 + i, 1));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(next++), buffer.poll());
+            }
+        }
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.weight());
+    }
+
+    @Test
+    public void refusesWhenSlotsAreFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, Long.MAX_VALUE, WaitStrategy.PARK);
+        assertTrue(buffer.offer(1, 1));
+        assertTrue(buffer.offer(2, 1));
+        assertFalse(buffer.offer(3, 1));
+        assertEquals(Integer.valueOf(1), buffer.poll());
+        assertTrue(buffer.offer(3, 1));
+    }
+
+    @Test
+    public void refusesWhenWeightIsExceeded() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(16, 100, WaitStrategy.PARK);
+        assertTrue(buffer.offer(1, 60));
+        assertFalse(buffer.offer(2, 50));
+        assertTrue(buffer.offer(3, 40));
+        assertEquals(100, buffer.weight());
+        buffer.poll();
+        assertEquals(40, buffer.weight());
+        assertTrue(buffer.offer(2, 50));
+    }
+
+    @Test
+    public void emptyBufferAcceptsOverweightElement() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(16, 100, WaitStrategy.PARK);
+        assertTrue(buffer.offer(1, 500));
+        assertFalse(buffer.offer(2, 1));
+    }
+
+    @Test
+    public void batchOfferStopsAtWeightBound() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(16, 100, WaitStrategy.PARK);
+        List<Integer> batch = Arrays.asList(1, 2, 3, 4);
+        long[] weights = {40, 40, 40, 40};
+        assertEquals(2, buffer.offer(batch, weights, 0));
+        assertEquals(0, buffer.offer(batch, weights, 2));
+        buffer.poll();
+        assertEquals(1, buffer.offer(batch, weights, 2));
+    }
+
+    @Test
+    public void drainPassesWeightsInOrder() {
+        RingBuffer<String> buffer = new RingBuffer<>(8, Long.MAX_VALUE, WaitStrategy.PARK);
+        buffer.offer("a", 1);
+        buffer.offer("b", 2);
+        buffer.offer("c", 3);
+        List<String> elements = new ArrayList<>();
+        List<Long> weights = new ArrayList<>();
+        assertEquals(2, buffer.drainTo((element, weight, offeredNanos) -> {
+            elements.add(element);
+            weights.add(weight);
+        }, 2));
+        assertEquals(Arrays.asList("a", "b"), elements);
+        assertEquals(Arrays.asList(1L, 2L), weights);
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void blockingOfferTimesOutOnBufferFullByWeight() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(16, 100, WaitStrategy.PARK);
+        assertTrue(buffer.offer(1, 100));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        assertFalse(buffer.offer(2, 10, 500, TimeUnit.MILLISECONDS));
+        long waited = System.nanoTime() - start;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(450));
+        // free slots must not make the writer spin while the weight bound holds it back
+        assertTrue("spent " + cpu + " ns of CPU waiting", cpu < waited / 2);
+    }
+
+    @Test
+    public void blockingOfferProceedsOnceWeightIsFreed() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(16, 100, WaitStrategy.PARK);
+        assertTrue(buffer.offer(1, 100));
+        Thread consumer = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            buffer.poll();
+        });
+        consumer.start();
+        assertTrue(buffer.offer(2, 10, 5, TimeUnit.SECONDS));
+        consumer.join();
+        assertEquals(Integer.valueOf(2), buffer.poll());
+    }
+}
@@ -0,0 +1,80 @@
+package com.tietoevry.datadog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolDrainerTest {
+    private static final long OPEN_MS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void drainsAgainAfterOutage() throws Exception {
+        AtomicBoolean down = new AtomicBoolean(true);
+        AtomicInteger delivered = new AtomicInteger();
+        Transport transport = new Transport() {
+            @Override
+            public void send(byte[] gzippedBody, int length, String query, Callback callback) {
+                if (down.get()) {
+                    callback.completed(503, null);
+                } else {
+                    delivered.incrementAndGet();
+                    callback.completed(202, null);
+                }
+            }
+
+            @Override
+            public void send(File gzippedBody, String query, Callback callback) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        CircuitBreaker breaker = new CircuitBreaker(2, 50, OPEN_MS);
+        try (DiskSpool spool = new DiskSpool(folder.newFolder().toPath(), 1024, 1024 * 1024);
+             RetryingSender sender = new RetryingSender(transport, new RetryPolicy(0, 1, 1), breaker,
+                     1024, 1024, 1, null)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(("{\"message\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+            }
+            SpoolDrainer drainer = new SpoolDrainer(spool, sender, new BufferPool(1), 1, 1024, 10);
+            drainer.start();
+            try {
+                // only the drainer sends, so its own failures open the breaker
+                assertTrue(await(() -> breaker.getState() == CircuitBreaker.State.OPEN));
+                down.set(false);
+                assertTrue("spool still holds entries after the intake came back", await(spool::isEmpty));
+                assertEquals(3, delivered.get());
+                assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+            } finally {
+                drainer.stopThread();
+                drainer.join();
+            }
+        }
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+}
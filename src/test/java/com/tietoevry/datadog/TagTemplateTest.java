@@ -0,0 +1,86 @@
+package com.tietoevry.datadog;
+
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TagTemplateTest {
+    @Test
+    public void substitutesFields() {
+        Message message = message();
+        message.addField("vdom", "root");
+        message.addField("log_type", "traffic");
+        assertEquals("env:prod,vdom:root,type:traffic",
+                render("env:prod,vdom:${vdom},type:${log_type}", message));
+    }
+
+    @Test
+    public void missingFieldRendersEmpty() {
+        assertEquals("vdom:,env:prod", render("vdom:${vdom},env:prod", message()));
+    }
+
+    @Test
+    public void missingOrEmptyFieldFallsBackToDefault() {
+        Message message = message();
+        message.addField("empty", "");
+        assertEquals("type:unknown,other:none",
+                render("type:${log_type:-unknown},other:${empty:-none}", message));
+    }
+
+    @Test
+    public void presentFieldIgnoresDefault() {
+        Message message = message();
+        message.addField("log_type", "event");
+        assertEquals("type:event", render("type:${log_type:-unknown}", message));
+    }
+
+    @Test
+    public void trimsFieldNames() {
+        Message message = message();
+        message.addField("vdom", "root");
+        assertEquals("vdom:root", render("vdom:${ vdom }", message));
+    }
+
+    @Test
+    public void rendersNumbers() {
+        Message message = message();
+        message.addField("lb_partition", 7);
+        assertEquals("lb_partition:7", render("lb_partition:${lb_partition}", message));
+    }
+
+    @Test
+    public void unclosedReferenceIsLiteral() {
+        assertEquals("a:${b", render("a:${b", message()));
+        assertEquals("plain", render("plain", message()));
+        assertEquals("", render("", message()));
+    }
+
+    @Test
+    public void defaultTemplate() {
+        Message message = message();
+        message.addField("vdom", "root");
+        message.addField("lb_partition", "2");
+        message.addField("log_type", "traffic");
+        assertEquals("vdom:root,lb_partition:2,log_type:traffic", render(TagTemplate.DEFAULT, message));
+    }
+
+    @Test
+    public void rendererTracksChangingValues() {
+        TagTemplate.Renderer renderer = TagTemplate.compile("vdom:${vdom}").newRenderer();
+        for (int i = 0; i < 3000; i++) {
+            Message message = message();
+            message.addField("vdom", "v" + (i % 1500));
+            assertEquals("vdom:v" + (i % 1500), renderer.render(message));
+        }
+    }
+
+    private static String render(String template, Message message) {
+        return TagTemplate.compile(template).newRenderer().render(message);
+    }
+
+    private static Message message() {
+        return new Message("message", "source", Tools.nowUTC());
+    }
+}